@@ -0,0 +1,141 @@
+package com.drogatkin.mailbee;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.aldan3.model.ProcessException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Header and content codecs of {@link MIMEUtil} and {@link QuotedPrintable}
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CodecBenchmark {
+	static final int CORPUS_SIZE = 64;
+
+	String[] encodedTexts;
+
+	String[] encodedWords;
+
+	String[] plainTexts;
+
+	String[] foldedTexts;
+
+	String[] longTexts;
+
+	byte[] qpBody;
+
+	byte[] buffer = new byte[8 * 1024];
+
+	DecodeTextCache cache = new DecodeTextCache(1024 * 1024);
+
+	int next;
+
+	@Setup
+	public void setup() {
+		Corpus corpus = new Corpus(2);
+		encodedTexts = new String[CORPUS_SIZE];
+		encodedWords = new String[CORPUS_SIZE];
+		plainTexts = new String[CORPUS_SIZE];
+		foldedTexts = new String[CORPUS_SIZE];
+		longTexts = new String[CORPUS_SIZE];
+		for (int i = 0; i < CORPUS_SIZE; i++) {
+			encodedTexts[i] = corpus.encodedText(6);
+			encodedWords[i] = corpus.encodedWord(corpus.text(3));
+			plainTexts[i] = corpus.text(10);
+			longTexts[i] = corpus.text(60);
+			foldedTexts[i] = MIMEUtil.fold(9, longTexts[i]);
+		}
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < 200; i++)
+			sb.append(corpus.text(12)).append("\r\n");
+		qpBody = QuotedPrintable.encode(sb.toString().getBytes(StandardCharsets.UTF_8));
+	}
+
+	int nextIndex() {
+		return next++ & (CORPUS_SIZE - 1);
+	}
+
+	@Benchmark
+	public String decodeText() throws IOException {
+		return MIMEUtil.decodeText(encodedTexts[nextIndex()]);
+	}
+
+	/**
+	 * repeating values, so all but first calls hit the cache
+	 */
+	@Benchmark
+	public String decodeTextCached() throws IOException {
+		return cache.decodeText(encodedTexts[nextIndex()]);
+	}
+
+	@Benchmark
+	public String decodeTextPlain() throws IOException {
+		return MIMEUtil.decodeText(plainTexts[nextIndex()]);
+	}
+
+	@Benchmark
+	public Object decodeWord() throws IOException, ProcessException {
+		return MIMEUtil.decodeWord(encodedWords[nextIndex()]);
+	}
+
+	/**
+	 * quoted-printable body stream, replaced QDecoderStream
+	 */
+	@Benchmark
+	public int decodeQPStream() throws IOException {
+		int result = 0;
+		try (InputStream in = MIMEUtil.decodingStream(new ByteArrayInputStream(qpBody), "quoted-printable")) {
+			for (int l; (l = in.read(buffer)) > 0;)
+				result += l;
+		}
+		return result;
+	}
+
+	@Benchmark
+	public byte[] decodeQP() {
+		return QuotedPrintable.decode(qpBody);
+	}
+
+	@Benchmark
+	public byte[] digestSha256() {
+		return ParseOptions.newDigest("SHA-256").digest(qpBody);
+	}
+
+	@Benchmark
+	public byte[] digestXXH64() {
+		return ParseOptions.newDigest(XXHash64.ALGORITHM).digest(qpBody);
+	}
+
+	@Benchmark
+	public String fold() {
+		return MIMEUtil.fold(9, longTexts[nextIndex()]);
+	}
+
+	@Benchmark
+	public String unfold() {
+		return MIMEUtil.unfold(foldedTexts[nextIndex()]);
+	}
+
+	@Benchmark
+	public int checkAscii() {
+		return MIMEUtil.checkAscii(longTexts[nextIndex()]);
+	}
+}
@@ -0,0 +1,186 @@
+package com.drogatkin.mailbee;
+
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Random;
+
+/**
+ * Generates messages for benchmarks, same seed gives same corpus
+ */
+final class Corpus {
+	static final String SMALL = "small";
+
+	static final String NESTED = "nested";
+
+	static final String ATTACHMENT = "attachment";
+
+	static final String ENCODED = "encoded";
+
+	static final String WORDS = "Lorem ipsum dolor sit amet consectetur adipiscing elit sed do eiusmod tempor incididunt ut labore et dolore magna aliqua Gr\u00fc\u00dfe caf\u00e9 na\u00efve \u0395\u03bb\u03bb\u03b7\u03bd\u03b9\u03ba\u03ac \u0420\u0443\u0441\u0441\u043a\u0438\u0439 \u65e5\u672c\u8a9e";
+
+	static final String[] CHARSETS = { "UTF-8", "ISO-8859-1", "KOI8-R", "windows-1252" };
+
+	final Random random;
+
+	Corpus(long seed) {
+		random = new Random(seed);
+	}
+
+	/**
+	 * @param kind
+	 *            one of {@link #SMALL}, {@link #NESTED}, {@link #ATTACHMENT},
+	 *            {@link #ENCODED}
+	 * @param count
+	 * @return messages
+	 */
+	byte[][] messages(String kind, int count) {
+		byte[][] result = new byte[count][];
+		for (int i = 0; i < count; i++)
+			switch (kind) {
+			case SMALL:
+				result[i] = smallText();
+				break;
+			case NESTED:
+				result[i] = nested(8);
+				break;
+			case ATTACHMENT:
+				result[i] = attachment(1024 * 1024);
+				break;
+			case ENCODED:
+				result[i] = encodedSubjects(20);
+				break;
+			default:
+				throw new IllegalArgumentException(kind);
+			}
+		return result;
+	}
+
+	byte[] smallText() {
+		StringBuilder sb = new StringBuilder();
+		headers(sb, text(5), "text/plain; charset=utf-8");
+		sb.append("\r\n");
+		lines(sb, 10 + random.nextInt(30));
+		return bytes(sb);
+	}
+
+	/**
+	 * multipart with alternatives and a forwarded message on each level
+	 */
+	byte[] nested(int depth) {
+		StringBuilder sb = new StringBuilder();
+		headers(sb, text(5), null);
+		nestedPart(sb, depth);
+		return bytes(sb);
+	}
+
+	private void nestedPart(StringBuilder sb, int depth) {
+		String boundary = "=_level" + depth + "_" + Long.toHexString(random.nextLong());
+		sb.append("Content-Type: multipart/mixed; boundary=\"").append(boundary).append("\"\r\n\r\n");
+		sb.append("This is a multi-part message in MIME format.\r\n");
+		sb.append("--").append(boundary).append("\r\n");
+		sb.append("Content-Type: multipart/alternative; boundary=\"alt").append(boundary).append("\"\r\n\r\n");
+		sb.append("--alt").append(boundary).append("\r\nContent-Type: text/plain; charset=utf-8\r\n\r\n");
+		lines(sb, 5);
+		sb.append("--alt").append(boundary)
+				.append("\r\nContent-Type: text/html; charset=utf-8\r\nContent-Transfer-Encoding: quoted-printable\r\n\r\n");
+		sb.append(new String(QuotedPrintable.encode(("<p>" + text(40) + "</p>").getBytes(StandardCharsets.UTF_8)),
+				StandardCharsets.US_ASCII)).append("\r\n");
+		sb.append("--alt").append(boundary).append("--\r\n");
+		if (depth > 0) {
+			sb.append("--").append(boundary).append("\r\nContent-Type: message/rfc822\r\n\r\n");
+			headers(sb, text(3), null);
+			nestedPart(sb, depth - 1);
+		}
+		sb.append("--").append(boundary).append("--\r\n");
+	}
+
+	byte[] attachment(int size) {
+		byte[] data = new byte[size];
+		random.nextBytes(data);
+		String boundary = "----=_Part_" + random.nextInt(1000000);
+		StringBuilder sb = new StringBuilder();
+		headers(sb, text(4), "multipart/mixed; boundary=\"" + boundary + "\"");
+		sb.append("\r\n--").append(boundary).append("\r\nContent-Type: text/plain; charset=us-ascii\r\n\r\n");
+		lines(sb, 5);
+		sb.append("--").append(boundary).append("\r\nContent-Type: application/octet-stream; name=\"data.bin\"\r\n")
+				.append("Content-Transfer-Encoding: base64\r\n")
+				.append("Content-Disposition: attachment; filename=\"data.bin\"\r\n\r\n");
+		sb.append(Base64.getMimeEncoder().encodeToString(data)).append("\r\n");
+		sb.append("--").append(boundary).append("--\r\n");
+		return bytes(sb);
+	}
+
+	/**
+	 * message where many headers are made of encoded words
+	 */
+	byte[] encodedSubjects(int headers) {
+		StringBuilder sb = new StringBuilder();
+		headers(sb, null, "text/plain; charset=utf-8");
+		for (int i = 0; i < headers; i++)
+			sb.append("X-Encoded-").append(i).append(": ").append(MIMEUtil.fold(13, encodedText(8))).append("\r\n");
+		sb.append("\r\n");
+		lines(sb, 5);
+		return bytes(sb);
+	}
+
+	/**
+	 * header value of encoded words in different charsets and encodings
+	 */
+	String encodedText(int words) {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < words; i++) {
+			if (i > 0)
+				sb.append(' ');
+			sb.append(encodedWord(text(1 + random.nextInt(4))));
+		}
+		return sb.toString();
+	}
+
+	String encodedWord(String text) {
+		String charset = CHARSETS[random.nextInt(CHARSETS.length)];
+		byte[] b = text.getBytes(Charset.forName(charset));
+		if (random.nextBoolean())
+			return "=?" + charset + "?B?" + Base64.getEncoder().encodeToString(b) + "?=";
+		QuotedPrintable.Encoder e = new QuotedPrintable.Encoder(true, true);
+		byte[] dst = new byte[QuotedPrintable.Encoder.maxEncodedLength(b.length)];
+		int l = e.encode(b, 0, b.length, dst, 0);
+		l += e.finish(dst, l);
+		return "=?" + charset + "?Q?" + new String(dst, 0, l, StandardCharsets.US_ASCII) + "?=";
+	}
+
+	String text(int words) {
+		String[] all = WORDS.split(" ");
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < words; i++) {
+			if (i > 0)
+				sb.append(' ');
+			sb.append(all[random.nextInt(all.length)]);
+		}
+		return sb.toString();
+	}
+
+	private void headers(StringBuilder sb, String subject, String contentType) {
+		sb.append("Received: from mx").append(random.nextInt(100))
+				.append(".example.org (mx.example.org [192.0.2.1]) by mail.example.com with ESMTPS id ")
+				.append(Long.toHexString(random.nextLong())).append(";\r\n\tMon, 3 Feb 2020 10:15:30 +0100\r\n");
+		sb.append("From: =?UTF-8?Q?Andr=C3=A9?= <andre@example.org>\r\n");
+		sb.append("To: bob@example.com, carol@example.com\r\n");
+		sb.append("Date: Mon, 3 Feb 2020 10:15:").append(10 + random.nextInt(50)).append(" +0100\r\n");
+		sb.append("Message-ID: <").append(Long.toHexString(random.nextLong())).append("@example.org>\r\n");
+		if (subject != null)
+			sb.append("Subject: ").append(MIMEUtil.fold(9, encodedWord(subject))).append("\r\n");
+		sb.append("MIME-Version: 1.0\r\n");
+		if (contentType != null)
+			sb.append("Content-Type: ").append(contentType).append("\r\n");
+	}
+
+	private void lines(StringBuilder sb, int count) {
+		for (int i = 0; i < count; i++)
+			sb.append(text(12)).append("\r\n");
+	}
+
+	private static byte[] bytes(StringBuilder sb) {
+		return sb.toString().getBytes(StandardCharsets.UTF_8);
+	}
+}
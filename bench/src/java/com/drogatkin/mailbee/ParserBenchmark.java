@@ -0,0 +1,97 @@
+package com.drogatkin.mailbee;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Message parsing over a generated corpus, every invocation takes next
+ * message of the corpus
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParserBenchmark {
+	static final int CORPUS_SIZE = 32;
+
+	@Param({ Corpus.SMALL, Corpus.NESTED, Corpus.ATTACHMENT, Corpus.ENCODED })
+	public String kind;
+
+	@Param({ "false", "true" })
+	public boolean lazy;
+
+	byte[][] messages;
+
+	byte[] body;
+
+	String boundary;
+
+	int next;
+
+	@Setup
+	public void setup() {
+		messages = new Corpus(1).messages(kind, CORPUS_SIZE);
+		// content of the first multipart of a message, so readToBoundary
+		// scans it all
+		byte[] m = messages[0];
+		String s = new String(m, StandardCharsets.ISO_8859_1);
+		int b = s.indexOf("boundary=\"");
+		if (b > 0) {
+			boundary = s.substring(b + 10, s.indexOf('"', b + 10));
+			int start = s.indexOf("\r\n\r\n", b) + 4;
+			body = s.substring(start).getBytes(StandardCharsets.ISO_8859_1);
+		} else {
+			boundary = "none";
+			body = m;
+		}
+	}
+
+	byte[] nextMessage() {
+		return messages[next++ & (CORPUS_SIZE - 1)];
+	}
+
+	@Benchmark
+	public MIMEMessage parseStream() throws IOException {
+		return MIMEMessage.parse(new ByteArrayInputStream(nextMessage()), new ParseOptions().lazy(lazy));
+	}
+
+	@Benchmark
+	public MIMEMessage parseArray() throws IOException {
+		return MIMEMessage.parse(nextMessage(), new ParseOptions().lazy(lazy));
+	}
+
+	@Benchmark
+	public Object parseHeaders() throws IOException {
+		MIMEMessage.ParsingContext pc = new MIMEMessage.ParsingContext();
+		pc.parsBuf = new byte[16 * 1024];
+		return MIMEMessage.parseHeaders(pc, new ByteArrayInputStream(nextMessage()));
+	}
+
+	@Benchmark
+	public boolean readToBoundary() throws IOException {
+		MIMEMessage.ParsingContext pc = new MIMEMessage.ParsingContext();
+		pc.parsBuf = new byte[16 * 1024];
+		boolean found = false;
+		ByteArrayInputStream in = new ByteArrayInputStream(body);
+		// preamble and all parts of the top level
+		while (MIMEMessage.readToBoundary(pc, in, MIMEMessage.NULL_SINK, boundary))
+			found = true;
+		return found;
+	}
+}
@@ -0,0 +1,231 @@
+package com.drogatkin.mailbee;
+
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+
+/**
+ * Parses all messages of a Maildir or a directory tree of .eml files
+ * concurrently. Files of Maildir cur and new folders and files with .eml
+ * extension are taken, Maildir tmp folders are skipped.
+ * <p>
+ * Every file is parsed in own virtual thread when the runtime has them,
+ * otherwise in a fixed pool, a number of files parsed at the same time is
+ * bounded in both cases.
+ */
+public class BatchIngester {
+	final int concurrency;
+
+	final ParseOptions options;
+
+	/**
+	 * Outcome of ingestion
+	 */
+	public static class Stats {
+		final AtomicLong messages = new AtomicLong();
+
+		final AtomicLong bytes = new AtomicLong();
+
+		final Map<Path, Exception> failures = new ConcurrentHashMap<>();
+
+		long nanos;
+
+		public long getMessages() {
+			return messages.get();
+		}
+
+		public long getBytes() {
+			return bytes.get();
+		}
+
+		/**
+		 * @return files failed to parse with a reason
+		 */
+		public Map<Path, Exception> getFailures() {
+			return failures;
+		}
+
+		public long getElapsedNanos() {
+			return nanos;
+		}
+
+		public double getMessagesPerSecond() {
+			return nanos == 0 ? 0 : messages.get() * 1e9 / nanos;
+		}
+
+		public double getMBPerSecond() {
+			return nanos == 0 ? 0 : bytes.get() * 1e9 / nanos / (1024 * 1024);
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%d messages, %.1f MB in %.3f s: %.1f messages/s, %.2f MB/s, %d failures",
+					messages.get(), bytes.get() / (1024.0 * 1024), nanos / 1e9, getMessagesPerSecond(),
+					getMBPerSecond(), failures.size());
+		}
+	}
+
+	public BatchIngester(int concurrency) {
+		this(concurrency, new ParseOptions());
+	}
+
+	/**
+	 * @param concurrency
+	 *            max number of files parsed at the same time
+	 * @param options
+	 *            options to parse every message
+	 */
+	public BatchIngester(int concurrency, ParseOptions options) {
+		if (concurrency < 1)
+			throw new IllegalArgumentException("Concurrency " + concurrency);
+		this.concurrency = concurrency;
+		this.options = options;
+	}
+
+	/**
+	 * Parses messages under the directory and gives them to the consumer
+	 *
+	 * @param root
+	 *            Maildir or directory with .eml files
+	 * @param consumer
+	 *            receives parsed messages, can be called from many threads
+	 *            at a time, null just parses
+	 * @return statistics when all messages are processed
+	 * @throws IOException
+	 *             when the tree can't be walked
+	 */
+	public Stats ingest(Path root, BiConsumer<Path, MIMEMessage> consumer) throws IOException {
+		Stats stats = new Stats();
+		Semaphore permits = new Semaphore(concurrency);
+		ExecutorService executor = newExecutor(concurrency);
+		long start = System.nanoTime();
+		try {
+			Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+				@Override
+				public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+					return isMaildirFolder(dir, "tmp")
+							|| StructureIndex.INDEX_DIRECTORY.equals(String.valueOf(dir.getFileName()))
+									? FileVisitResult.SKIP_SUBTREE : FileVisitResult.CONTINUE;
+				}
+
+				@Override
+				public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+					if (!attrs.isRegularFile() || !isMessage(file))
+						return FileVisitResult.CONTINUE;
+					try {
+						permits.acquire();
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						throw new IOException("Interrupted", e);
+					}
+					try {
+						executor.execute(() -> {
+							try {
+								MIMEMessage message = MIMEMessage.parse(file, options);
+								stats.messages.incrementAndGet();
+								stats.bytes.addAndGet(attrs.size());
+								if (consumer != null)
+									consumer.accept(file, message);
+							} catch (Exception e) {
+								stats.failures.put(file, e);
+							} finally {
+								permits.release();
+							}
+						});
+					} catch (RuntimeException e) {
+						permits.release();
+						throw e;
+					}
+					return FileVisitResult.CONTINUE;
+				}
+
+				@Override
+				public FileVisitResult visitFileFailed(Path file, IOException e) {
+					stats.failures.put(file, e);
+					return FileVisitResult.CONTINUE;
+				}
+			});
+		} finally {
+			executor.shutdown();
+			try {
+				executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			stats.nanos = System.nanoTime() - start;
+		}
+		return stats;
+	}
+
+	static boolean isMessage(Path file) {
+		String name = file.getFileName().toString();
+		if (name.endsWith(StructureIndex.SIDECAR))
+			return false;
+		if (name.regionMatches(true, name.length() - 4, ".eml", 0, 4))
+			return true;
+		Path dir = file.getParent();
+		return !name.startsWith(".") && (isMaildirFolder(dir, "cur") || isMaildirFolder(dir, "new"));
+	}
+
+	static boolean isMaildirFolder(Path dir, String name) {
+		if (dir == null || dir.getFileName() == null || !dir.getFileName().toString().equals(name))
+			return false;
+		Path maildir = dir.getParent();
+		return maildir != null && Files.isDirectory(maildir.resolve("cur")) && Files.isDirectory(maildir.resolve("new"));
+	}
+
+	/**
+	 * virtual threads come with Java 21, the library targets earlier
+	 * runtimes, so they are looked up reflectively
+	 */
+	static ExecutorService newExecutor(int concurrency) {
+		try {
+			return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (ReflectiveOperationException e) {
+			return Executors.newFixedThreadPool(concurrency);
+		}
+	}
+
+	public static void main(String... args) {
+		int concurrency = Runtime.getRuntime().availableProcessors() * 4;
+		ParseOptions options = new ParseOptions();
+		int i = 0;
+		for (; i < args.length && args[i].startsWith("-"); i++) {
+			if ("-c".equals(args[i]) && i + 1 < args.length)
+				concurrency = Integer.parseInt(args[++i]);
+			else if ("-lazy".equals(args[i]))
+				options.lazy(true);
+			else {
+				System.err.printf("Unknown option %s%n", args[i]);
+				i = args.length;
+			}
+		}
+		if (i >= args.length) {
+			System.err.printf("Usage: BatchIngester [-c concurrency] [-lazy] <maildir or directory>...%n");
+			System.exit(1);
+		}
+		BatchIngester ingester = new BatchIngester(concurrency, options);
+		for (; i < args.length; i++) {
+			try {
+				Stats stats = ingester.ingest(Paths.get(args[i]), null);
+				System.out.printf("%s: %s%n", args[i], stats);
+				for (Map.Entry<Path, Exception> e : stats.getFailures().entrySet())
+					System.out.printf("  %s: %s%n", e.getKey(), e.getValue());
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+}
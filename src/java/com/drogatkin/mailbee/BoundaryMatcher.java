@@ -0,0 +1,61 @@
+package com.drogatkin.mailbee;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Finds a multipart delimiter LF--boundary in a buffer using
+ * Boyer-Moore-Horspool skip table, so most of content bytes are never looked
+ * at. CR before the delimiter belongs to it, so line breaks can be CRLF or
+ * bare LF as in mbox archives and messages saved by Unix tools.
+ */
+class BoundaryMatcher {
+	final byte[] pattern;
+
+	final int[] shift = new int[256];
+
+	BoundaryMatcher(String boundary) {
+		pattern = ("\n--" + boundary).getBytes(StandardCharsets.ISO_8859_1);
+		int last = pattern.length - 1;
+		Arrays.fill(shift, pattern.length);
+		for (int i = 0; i < last; i++)
+			shift[pattern[i] & 255] = last - i;
+	}
+
+	/**
+	 * @return position of the delimiter or -1 if the range has no complete
+	 *         one
+	 */
+	int indexOf(byte[] buf, int from, int to) {
+		int last = pattern.length - 1;
+		byte lb = pattern[last];
+		for (int i = from; i + last < to; i += shift[buf[i + last] & 255]) {
+			if (buf[i + last] == lb) {
+				int j = last - 1;
+				while (j >= 0 && buf[i + j] == pattern[j])
+					j--;
+				if (j < 0)
+					return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * gives start of a delimiter found at the position, CR before it is
+	 * included when it is in the range
+	 */
+	static int start(byte[] buf, int from, int pos) {
+		return pos > from && buf[pos - 1] == '\r' ? pos - 1 : pos;
+	}
+
+	/**
+	 * checks for the delimiter without leading line break
+	 */
+	boolean startsAt(byte[] buf, int pos) {
+		for (int j = 1; j < pattern.length; j++)
+			if (buf[pos + j - 1] != pattern[j])
+				return false;
+		return true;
+	}
+}
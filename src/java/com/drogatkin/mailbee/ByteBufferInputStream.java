@@ -0,0 +1,45 @@
+package com.drogatkin.mailbee;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Reads remaining content of a byte buffer, the buffer position advances
+ */
+class ByteBufferInputStream extends InputStream {
+	ByteBuffer buf;
+
+	ByteBufferInputStream(ByteBuffer buf) {
+		this.buf = buf;
+	}
+
+	@Override
+	public int read() {
+		return buf.hasRemaining() ? buf.get() & 255 : -1;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) {
+		if (len == 0)
+			return 0;
+		if (!buf.hasRemaining())
+			return -1;
+		len = Math.min(len, buf.remaining());
+		buf.get(b, off, len);
+		return len;
+	}
+
+	@Override
+	public long skip(long n) {
+		if (n <= 0)
+			return 0;
+		n = Math.min(n, buf.remaining());
+		buf.position(buf.position() + (int) n);
+		return n;
+	}
+
+	@Override
+	public int available() {
+		return buf.remaining();
+	}
+}
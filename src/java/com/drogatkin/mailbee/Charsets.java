@@ -0,0 +1,136 @@
+package com.drogatkin.mailbee;
+
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.IllegalCharsetNameException;
+import java.nio.charset.StandardCharsets;
+import java.nio.charset.UnsupportedCharsetException;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Resolves MIME charset names to {@link Charset} once and decodes bytes with
+ * decoders reused by a thread. US-ASCII, ISO-8859-1 and UTF-8, which are most
+ * of mail, are decoded without a decoder, content in ASCII is copied to a
+ * string as is.
+ */
+public final class Charsets {
+	/** names come from messages, so a number of cached ones is limited */
+	static final int MAX_CACHED = 256;
+
+	/** bigger content is decoded without keeping a buffer for it */
+	static final int MAX_REUSED = 64 * 1024;
+
+	static final ConcurrentHashMap<String, Charset> cache = new ConcurrentHashMap<>();
+
+	static final ThreadLocal<Decoders> decoders = ThreadLocal.withInitial(Decoders::new);
+
+	private Charsets() {
+	}
+
+	/**
+	 * gives charset for a MIME name, mapped to Java as by
+	 * {@link MIMEUtil#javaCharset(String)}
+	 *
+	 * @param mimeName
+	 *            name as in a message
+	 * @return charset
+	 * @throws UnsupportedEncodingException
+	 *             when the charset is not available
+	 */
+	public static Charset forName(String mimeName) throws UnsupportedEncodingException {
+		Charset result = cache.get(mimeName);
+		if (result != null)
+			return result;
+		result = lookup(mimeName);
+		if (cache.size() < MAX_CACHED)
+			cache.putIfAbsent(mimeName, result);
+		return result;
+	}
+
+	static Charset lookup(String mimeName) throws UnsupportedEncodingException {
+		String name = mimeName.trim();
+		try {
+			return Charset.forName(MIMEUtil.javaCharset(name));
+		} catch (IllegalCharsetNameException | UnsupportedCharsetException e) {
+			// mapping can name an old alias which is gone
+		}
+		try {
+			return Charset.forName(name);
+		} catch (IllegalCharsetNameException | UnsupportedCharsetException e) {
+			throw new UnsupportedEncodingException(mimeName);
+		}
+	}
+
+	/**
+	 * decodes bytes as {@link String#String(byte[], int, int, Charset)} does,
+	 * malformed input is replaced
+	 */
+	public static String decode(byte[] b, int off, int len, Charset charset) {
+		if (StandardCharsets.ISO_8859_1.equals(charset))
+			return new String(b, off, len, StandardCharsets.ISO_8859_1);
+		if (StandardCharsets.UTF_8.equals(charset) || StandardCharsets.US_ASCII.equals(charset)) {
+			if (isAscii(b, off, len))
+				return new String(b, off, len, StandardCharsets.ISO_8859_1);
+			return new String(b, off, len, charset);
+		}
+		return decoders.get().decode(b, off, len, charset);
+	}
+
+	public static String decode(byte[] b, Charset charset) {
+		return decode(b, 0, b.length, charset);
+	}
+
+	static boolean isAscii(byte[] b, int off, int len) {
+		for (int i = off, e = off + len; i < e; i++)
+			if (b[i] < 0)
+				return false;
+		return true;
+	}
+
+	/**
+	 * decoders of a thread, the last used ones are kept
+	 */
+	static final class Decoders {
+		final CharsetDecoder[] decoders = new CharsetDecoder[4];
+
+		int next;
+
+		CharBuffer chars = CharBuffer.allocate(256);
+
+		CharsetDecoder get(Charset charset) {
+			for (CharsetDecoder d : decoders)
+				if (d != null && d.charset().equals(charset))
+					return d;
+			CharsetDecoder d = charset.newDecoder().onMalformedInput(CodingErrorAction.REPLACE)
+					.onUnmappableCharacter(CodingErrorAction.REPLACE);
+			decoders[next] = d;
+			next = (next + 1) % decoders.length;
+			return d;
+		}
+
+		String decode(byte[] b, int off, int len, Charset charset) {
+			if (len == 0)
+				return "";
+			CharsetDecoder d = get(charset);
+			long max = (long) Math.ceil(len * (double) d.maxCharsPerByte()) + 1;
+			if (max > MAX_REUSED)
+				return new String(b, off, len, charset);
+			if (chars.capacity() < max)
+				chars = CharBuffer.allocate((int) max);
+			chars.clear();
+			d.reset();
+			CoderResult r = d.decode(ByteBuffer.wrap(b, off, len), chars, true);
+			if (r.isUnderflow())
+				r = d.flush(chars);
+			if (!r.isUnderflow())
+				return new String(b, off, len, charset);
+			chars.flip();
+			return chars.toString();
+		}
+	}
+}
@@ -0,0 +1,233 @@
+package com.drogatkin.mailbee;
+
+import java.time.Instant;
+import java.util.Date;
+
+/**
+ * Parses RFC 5322 date-time including obsolete RFC 822 forms: optional day of
+ * week, one digit day, two digit year, missing seconds, named zones and
+ * trailing comments. It doesn't allocate when parsing and is safe to use from
+ * many threads. Recently parsed values are cached, since a folder listing
+ * sees same dates many times.
+ */
+public final class DateParser {
+	/** returned when a value can't be parsed */
+	public static final long INVALID = Long.MIN_VALUE;
+
+	private static final String MONTHS = "janfebmaraprmayjunjulaugsepoctnovdec";
+
+	private static final class Entry {
+		final String text;
+		final long time;
+
+		Entry(String text, long time) {
+			this.text = text;
+			this.time = time;
+		}
+	}
+
+	// entries are immutable, so a racy array is safe
+	private static final Entry[] cache = new Entry[64];
+
+	private DateParser() {
+	}
+
+	public static Date toDate(String value) {
+		long t = parse(value);
+		return t == INVALID ? null : new Date(t);
+	}
+
+	public static Instant toInstant(String value) {
+		long t = parse(value);
+		return t == INVALID ? null : Instant.ofEpochMilli(t);
+	}
+
+	/**
+	 * @param value
+	 *            date-time header value
+	 * @return milliseconds since epoch or {@link #INVALID}
+	 */
+	public static long parse(String value) {
+		if (value == null)
+			return INVALID;
+		int slot = value.hashCode() & (cache.length - 1);
+		Entry e = cache[slot];
+		if (e != null && e.text.equals(value))
+			return e.time;
+		long result = parse(value, 0, value.length());
+		if (result != INVALID)
+			cache[slot] = new Entry(value, result);
+		return result;
+	}
+
+	static long parse(CharSequence s, int p, int end) {
+		p = skipSpace(s, p, end);
+		// optional day of week
+		if (p < end && Character.isLetter(s.charAt(p))) {
+			while (p < end && Character.isLetter(s.charAt(p)))
+				p++;
+			if (p < end && (s.charAt(p) == ',' || s.charAt(p) == '.'))
+				p++;
+			p = skipSpace(s, p, end);
+		}
+		int start = p;
+		int day = 0;
+		while (p < end && p - start < 2 && isDigit(s.charAt(p)))
+			day = day * 10 + s.charAt(p++) - '0';
+		if (p == start || day < 1 || day > 31)
+			return INVALID;
+		p = skipSeparator(s, p, end);
+		if (p + 3 > end)
+			return INVALID;
+		int month = -1;
+		for (int m = 0; m < 12 && month < 0; m++) {
+			int i = 0;
+			while (i < 3 && (s.charAt(p + i) | 0x20) == MONTHS.charAt(m * 3 + i))
+				i++;
+			if (i == 3)
+				month = m + 1;
+		}
+		if (month < 0)
+			return INVALID;
+		p += 3;
+		while (p < end && Character.isLetter(s.charAt(p))) // full month name
+			p++;
+		p = skipSeparator(s, p, end);
+		start = p;
+		int year = 0;
+		while (p < end && p - start < 4 && isDigit(s.charAt(p)))
+			year = year * 10 + s.charAt(p++) - '0';
+		switch (p - start) {
+		case 2:
+			year += year < 50 ? 2000 : 1900;
+			break;
+		case 3:
+			year += 1900;
+			break;
+		case 4:
+			break;
+		default:
+			return INVALID;
+		}
+		p = skipSpace(s, p, end);
+		int hour = 0, minute = 0, second = 0;
+		start = p;
+		while (p < end && p - start < 2 && isDigit(s.charAt(p)))
+			hour = hour * 10 + s.charAt(p++) - '0';
+		if (p == start || p >= end || s.charAt(p++) != ':')
+			return INVALID;
+		start = p;
+		while (p < end && p - start < 2 && isDigit(s.charAt(p)))
+			minute = minute * 10 + s.charAt(p++) - '0';
+		if (p == start)
+			return INVALID;
+		if (p < end && s.charAt(p) == ':') { // seconds are optional
+			start = ++p;
+			while (p < end && p - start < 2 && isDigit(s.charAt(p)))
+				second = second * 10 + s.charAt(p++) - '0';
+			if (p == start)
+				return INVALID;
+		}
+		if (hour > 23 || minute > 59 || second > 60)
+			return INVALID;
+		p = skipSpace(s, p, end);
+		int zone = 0; // minutes east
+		if (p < end) {
+			char c = s.charAt(p);
+			if (c == '+' || c == '-') {
+				if (p + 5 > end)
+					return INVALID;
+				int z = 0;
+				for (int i = 1; i < 5; i++) {
+					char d = s.charAt(p + i);
+					if (!isDigit(d))
+						return INVALID;
+					z = z * 10 + d - '0';
+				}
+				zone = (z / 100) * 60 + z % 100;
+				if (c == '-')
+					zone = -zone;
+			} else if (Character.isLetter(c)) {
+				start = p;
+				while (p < end && Character.isLetter(s.charAt(p)))
+					p++;
+				zone = zoneOffset(s, start, p);
+			}
+		}
+		if (second == 60)
+			second = 59; // leap second
+		if (day > lengthOfMonth(year, month))
+			return INVALID;
+		long days = daysFromCivil(year, month, day);
+		return ((days * 24 + hour) * 60 + minute - zone) * 60000L + second * 1000L;
+	}
+
+	/**
+	 * offset of obsolete zone names in minutes, unknown and military zones
+	 * are treated as UTC accordingly RFC 5322 4.3
+	 */
+	static int zoneOffset(CharSequence s, int start, int end) {
+		int len = end - start;
+		if (len == 3) {
+			char c0 = (char) (s.charAt(start) | 0x20), c1 = (char) (s.charAt(start + 1) | 0x20),
+					c2 = (char) (s.charAt(start + 2) | 0x20);
+			if (c2 == 't' && (c1 == 's' || c1 == 'd')) {
+				int dst = c1 == 'd' ? 60 : 0;
+				switch (c0) {
+				case 'e':
+					return -300 + dst;
+				case 'c':
+					return -360 + dst;
+				case 'm':
+					return -420 + dst;
+				case 'p':
+					return -480 + dst;
+				}
+			}
+		}
+		return 0;
+	}
+
+	/**
+	 * days since 1970-01-01 in proleptic Gregorian calendar
+	 */
+	static long daysFromCivil(int y, int m, int d) {
+		y -= m <= 2 ? 1 : 0;
+		long era = (y >= 0 ? y : y - 399) / 400;
+		long yoe = y - era * 400;
+		long doy = (153 * (m + (m > 2 ? -3 : 9)) + 2) / 5 + d - 1;
+		long doe = yoe * 365 + yoe / 4 - yoe / 100 + doy;
+		return era * 146097 + doe - 719468;
+	}
+
+	static int lengthOfMonth(int y, int m) {
+		switch (m) {
+		case 2:
+			return (y % 4 == 0 && y % 100 != 0) || y % 400 == 0 ? 29 : 28;
+		case 4:
+		case 6:
+		case 9:
+		case 11:
+			return 30;
+		default:
+			return 31;
+		}
+	}
+
+	private static boolean isDigit(char c) {
+		return c >= '0' && c <= '9';
+	}
+
+	private static int skipSpace(CharSequence s, int p, int end) {
+		while (p < end && (s.charAt(p) == ' ' || s.charAt(p) == '\t' || s.charAt(p) == '\r' || s.charAt(p) == '\n'))
+			p++;
+		return p;
+	}
+
+	private static int skipSeparator(CharSequence s, int p, int end) {
+		p = skipSpace(s, p, end);
+		if (p < end && s.charAt(p) == '-')
+			p++;
+		return skipSpace(s, p, end);
+	}
+}
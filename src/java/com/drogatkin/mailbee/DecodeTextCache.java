@@ -0,0 +1,167 @@
+package com.drogatkin.mailbee;
+
+import java.io.UnsupportedEncodingException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded cache of decoded header values keyed by a raw value, for traffic
+ * repeating same subjects, names and list headers. It is split to segments,
+ * each keeps own least recently used order under own lock, so threads rarely
+ * wait for each other. Size is counted in characters of raw and decoded
+ * values, a value too big for a segment isn't kept.
+ * <p>
+ * Set it by {@link MIMEUtil#setDecodeCache(DecodeTextCache)} to be used by
+ * {@link MIMEUtil#decodeText(String)}, or call {@link #decodeText(String)}
+ * directly.
+ */
+public class DecodeTextCache {
+	/** approximate cost of an entry itself, in chars */
+	static final int ENTRY_WEIGHT = 32;
+
+	final Segment[] segments;
+
+	final LongAdder hits = new LongAdder();
+
+	final LongAdder misses = new LongAdder();
+
+	final LongAdder evictions = new LongAdder();
+
+	/**
+	 * @param maxWeight
+	 *            total length of cached raw and decoded values, in chars
+	 */
+	public DecodeTextCache(long maxWeight) {
+		int n = Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors()) * 2 - 1) * 2;
+		while (n > 1 && maxWeight / n < 4 * 1024)
+			n >>= 1;
+		segments = new Segment[n];
+		for (int i = 0; i < n; i++)
+			segments[i] = new Segment(Math.max(1, maxWeight / n));
+	}
+
+	/**
+	 * decodes a value as {@link MIMEUtil#decodeText(String)} does, a value
+	 * without encoded words is returned as is and not cached
+	 */
+	public String decodeText(String raw) throws UnsupportedEncodingException {
+		if (raw.indexOf("=?") == -1)
+			return raw;
+		Segment segment = segment(raw);
+		String result = segment.get(raw);
+		if (result != null) {
+			hits.increment();
+			return result;
+		}
+		misses.increment();
+		result = MIMEUtil.decodeEncodedText(raw);
+		segment.put(raw, result);
+		return result;
+	}
+
+	Segment segment(String raw) {
+		int h = raw.hashCode();
+		h ^= h >>> 16;
+		return segments[h & (segments.length - 1)];
+	}
+
+	public long getHits() {
+		return hits.sum();
+	}
+
+	public long getMisses() {
+		return misses.sum();
+	}
+
+	public long getEvictions() {
+		return evictions.sum();
+	}
+
+	public double getHitRate() {
+		long h = hits.sum(), t = h + misses.sum();
+		return t == 0 ? 0 : (double) h / t;
+	}
+
+	/**
+	 * @return number of cached values
+	 */
+	public int size() {
+		int result = 0;
+		for (Segment s : segments)
+			result += s.size();
+		return result;
+	}
+
+	/**
+	 * @return current weight in chars
+	 */
+	public long weight() {
+		long result = 0;
+		for (Segment s : segments)
+			result += s.weight();
+		return result;
+	}
+
+	public void clear() {
+		for (Segment s : segments)
+			s.clear();
+	}
+
+	@Override
+	public String toString() {
+		return "DecodeTextCache [size=" + size() + ", weight=" + weight() + ", hits=" + getHits() + ", misses="
+				+ getMisses() + ", evictions=" + getEvictions() + "]";
+	}
+
+	static int entryWeight(String raw, String decoded) {
+		return raw.length() + decoded.length() + ENTRY_WEIGHT;
+	}
+
+	final class Segment {
+		final long maxWeight;
+
+		final LinkedHashMap<String, String> map = new LinkedHashMap<>(64, 0.75f, true);
+
+		long weight;
+
+		Segment(long maxWeight) {
+			this.maxWeight = maxWeight;
+		}
+
+		synchronized String get(String raw) {
+			return map.get(raw);
+		}
+
+		synchronized void put(String raw, String decoded) {
+			int w = entryWeight(raw, decoded);
+			if (w > maxWeight / 4)
+				return;
+			String old = map.put(raw, decoded);
+			if (old != null)
+				weight -= entryWeight(raw, old);
+			weight += w;
+			for (Iterator<Map.Entry<String, String>> i = map.entrySet().iterator(); weight > maxWeight
+					&& i.hasNext();) {
+				Map.Entry<String, String> e = i.next();
+				weight -= entryWeight(e.getKey(), e.getValue());
+				i.remove();
+				evictions.increment();
+			}
+		}
+
+		synchronized int size() {
+			return map.size();
+		}
+
+		synchronized long weight() {
+			return weight;
+		}
+
+		synchronized void clear() {
+			map.clear();
+			weight = 0;
+		}
+	}
+}
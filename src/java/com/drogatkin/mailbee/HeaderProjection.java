@@ -0,0 +1,48 @@
+package com.drogatkin.mailbee;
+
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Set of header names wanted from a message, a name gets checked by its
+ * bytes, so values of other headers are skipped without making strings.
+ * Content-Type and Content-Transfer-Encoding are always included, since
+ * structure and content of a message depend on them.
+ */
+final class HeaderProjection {
+	final String[] names;
+
+	final int[] hashes;
+
+	HeaderProjection(Collection<String> wanted) {
+		Set<String> all = new LinkedHashSet<>();
+		for (String name : wanted)
+			all.add(name.trim().toLowerCase(Locale.ENGLISH));
+		all.add(MIMEMessage.CONTENT_TYPE);
+		all.add(MIMEMessage.CONTENT_TRANSFER_ENCODING);
+		names = all.toArray(new String[all.size()]);
+		hashes = new int[names.length];
+		for (int i = 0; i < names.length; i++)
+			hashes[i] = HeaderTable.hash(names[i]);
+	}
+
+	/**
+	 * checks name bytes ignoring case
+	 */
+	boolean contains(byte[] b, int off, int len) {
+		int h = HeaderTable.hash(b, off, len);
+		for (int i = 0; i < names.length; i++) {
+			if (hashes[i] != h || names[i].length() != len)
+				continue;
+			String n = names[i];
+			int j = 0;
+			while (j < len && HeaderTable.fold(b[off + j] & 255) == n.charAt(j))
+				j++;
+			if (j == len)
+				return true;
+		}
+		return false;
+	}
+}
@@ -0,0 +1,342 @@
+package com.drogatkin.mailbee;
+
+import java.util.AbstractCollection;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Case insensitive multi valued header map keeping headers in message order.
+ * Headers are stored in parallel arrays with precomputed case folded hashes,
+ * names are lower case and well known names share constant instances, so a
+ * lookup by {@link #getFirst(String)} doesn't allocate anything.
+ * <p>
+ * Map view groups values by name, a name added without value is present with
+ * an empty collection. Value collections are detached copies, adding to them
+ * doesn't change headers, which are changed by {@link #add(String, String)},
+ * {@link #put(String, Collection)} and {@link #remove(Object)}.
+ */
+public class HeaderTable extends AbstractMap<String, Collection<String>> {
+	/** well known header names */
+	static final String[] KNOWN = { MIMEMessage.SUBJECT, MIMEMessage.FROM, MIMEMessage.TO, "cc", "bcc",
+			MIMEMessage.DATE, MIMEMessage.MESSAGE_ID, MIMEMessage.CONTENT_TYPE,
+			MIMEMessage.CONTENT_TRANSFER_ENCODING, MIMEMessage.CONTENT_DISPOSITION, "content-id",
+			"content-description", "content-language", "mime-version", "received", "reply-to", "return-path",
+			"sender", "in-reply-to", "references", "delivered-to", "list-id", "list-unsubscribe", "precedence",
+			"dkim-signature", "authentication-results", "arc-seal", "arc-message-signature",
+			"arc-authentication-results", "received-spf", "x-mailer", "user-agent", "importance", "x-priority",
+			"thread-topic", "thread-index" };
+
+	private static final String[] KNOWN_TABLE = new String[128];
+
+	static {
+		for (String name : KNOWN) {
+			int i = hash(name) & (KNOWN_TABLE.length - 1);
+			while (KNOWN_TABLE[i] != null)
+				i = (i + 1) & (KNOWN_TABLE.length - 1);
+			KNOWN_TABLE[i] = name;
+		}
+	}
+
+	String[] names;
+
+	String[] values;
+
+	int[] hashes;
+
+	int size;
+
+	int distinct = -1; // number of names, -1 when not counted yet
+
+	public HeaderTable() {
+		this(16);
+	}
+
+	public HeaderTable(int capacity) {
+		names = new String[capacity];
+		values = new String[capacity];
+		hashes = new int[capacity];
+	}
+
+	/**
+	 * adds a header at the end
+	 *
+	 * @param name
+	 *            name in any case
+	 * @param value
+	 *            value, null adds just name
+	 */
+	public void add(String name, String value) {
+		int h = hash(name);
+		String known = known(name, h);
+		if (known != null)
+			name = known;
+		else {
+			for (int i = 0, l = name.length(); i < l; i++) {
+				char c = name.charAt(i);
+				if (c >= 'A' && c <= 'Z') {
+					name = name.toLowerCase(Locale.ENGLISH);
+					break;
+				}
+			}
+		}
+		if (size == names.length) {
+			int cap = Math.max(4, size * 2);
+			names = Arrays.copyOf(names, cap);
+			values = Arrays.copyOf(values, cap);
+			hashes = Arrays.copyOf(hashes, cap);
+		}
+		names[size] = name;
+		values[size] = value;
+		hashes[size] = h;
+		size++;
+		distinct = -1;
+	}
+
+	/**
+	 * gives first value of a header
+	 *
+	 * @param name
+	 *            name in any case
+	 * @return value or null if no such header or it has no value
+	 */
+	public String getFirst(String name) {
+		int h = hash(name);
+		for (int i = 0; i < size; i++)
+			if (hashes[i] == h && values[i] != null && names[i].equalsIgnoreCase(name))
+				return values[i];
+		return null;
+	}
+
+	/**
+	 * @return name of header at position
+	 */
+	public String getName(int index) {
+		if (index >= size)
+			throw new IndexOutOfBoundsException(index + " of " + size);
+		return names[index];
+	}
+
+	/**
+	 * @return value of header at position, can be null
+	 */
+	public String getValue(int index) {
+		if (index >= size)
+			throw new IndexOutOfBoundsException(index + " of " + size);
+		return values[index];
+	}
+
+	/**
+	 * @return number of headers including repeating names
+	 */
+	public int count() {
+		return size;
+	}
+
+	int indexOf(Object key, int from) {
+		if (key instanceof String == false)
+			return -1;
+		String name = (String) key;
+		int h = hash(name);
+		for (int i = from; i < size; i++)
+			if (hashes[i] == h && names[i].equalsIgnoreCase(name))
+				return i;
+		return -1;
+	}
+
+	@Override
+	public boolean containsKey(Object key) {
+		return indexOf(key, 0) >= 0;
+	}
+
+	@Override
+	public Collection<String> get(Object key) {
+		int i = indexOf(key, 0);
+		if (i < 0)
+			return null;
+		ArrayList<String> result = new ArrayList<>(2);
+		for (; i >= 0; i = indexOf(key, i + 1))
+			if (values[i] != null)
+				result.add(values[i]);
+		return result;
+	}
+
+	@Override
+	public Collection<String> put(String key, Collection<String> value) {
+		Collection<String> result = remove(key);
+		int d = distinct;
+		if (value == null || value.isEmpty())
+			add(key, null);
+		else
+			for (String v : value)
+				add(key, v);
+		if (d >= 0)
+			distinct = d + 1;
+		return result;
+	}
+
+	@Override
+	public Collection<String> remove(Object key) {
+		Collection<String> result = get(key);
+		if (result != null) {
+			String name = (String) key;
+			int h = hash(name);
+			int j = 0;
+			for (int i = 0; i < size; i++) {
+				if (hashes[i] == h && names[i].equalsIgnoreCase(name))
+					continue;
+				names[j] = names[i];
+				values[j] = values[i];
+				hashes[j] = hashes[i];
+				j++;
+			}
+			Arrays.fill(names, j, size, null);
+			Arrays.fill(values, j, size, null);
+			size = j;
+			if (distinct > 0)
+				distinct--;
+		}
+		return result;
+	}
+
+	@Override
+	public void clear() {
+		Arrays.fill(names, 0, size, null);
+		Arrays.fill(values, 0, size, null);
+		size = 0;
+		distinct = 0;
+	}
+
+	@Override
+	public int size() {
+		if (distinct < 0) {
+			// names are lower case, so equal names are equal strings
+			HashSet<String> seen = new HashSet<>(size * 2);
+			for (int i = 0; i < size; i++)
+				seen.add(names[i]);
+			distinct = seen.size();
+		}
+		return distinct;
+	}
+
+	@Override
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	@Override
+	public Set<Entry<String, Collection<String>>> entrySet() {
+		return new AbstractSet<Entry<String, Collection<String>>>() {
+			@Override
+			public Iterator<Entry<String, Collection<String>>> iterator() {
+				// values get grouped by one pass, names are lower case, so equal
+				// names are equal strings
+				LinkedHashMap<String, Collection<String>> groups = new LinkedHashMap<>();
+				for (int i = 0; i < size; i++) {
+					Collection<String> values = groups.get(names[i]);
+					if (values == null)
+						groups.put(names[i], values = new ArrayList<>(2));
+					if (HeaderTable.this.values[i] != null)
+						values.add(HeaderTable.this.values[i]);
+				}
+				final Iterator<Entry<String, Collection<String>>> i = groups.entrySet().iterator();
+				return new Iterator<Entry<String, Collection<String>>>() {
+					@Override
+					public boolean hasNext() {
+						return i.hasNext();
+					}
+
+					@Override
+					public Entry<String, Collection<String>> next() {
+						return new SimpleImmutableEntry<>(i.next());
+					}
+				};
+			}
+
+			@Override
+			public int size() {
+				return HeaderTable.this.size();
+			}
+		};
+	}
+
+	@Override
+	public Collection<Collection<String>> values() {
+		return new AbstractCollection<Collection<String>>() {
+			@Override
+			public Iterator<Collection<String>> iterator() {
+				final Iterator<Entry<String, Collection<String>>> i = entrySet().iterator();
+				return new Iterator<Collection<String>>() {
+					@Override
+					public boolean hasNext() {
+						return i.hasNext();
+					}
+
+					@Override
+					public Collection<String> next() {
+						return i.next().getValue();
+					}
+				};
+			}
+
+			@Override
+			public int size() {
+				return HeaderTable.this.size();
+			}
+		};
+	}
+
+	/**
+	 * gives canonical lower case name for name bytes, well known names don't
+	 * allocate
+	 */
+	static String name(byte[] b, int off, int len) {
+		int h = hash(b, off, len);
+		for (int i = h & (KNOWN_TABLE.length - 1); KNOWN_TABLE[i] != null; i = (i + 1) & (KNOWN_TABLE.length - 1)) {
+			String k = KNOWN_TABLE[i];
+			if (k.length() != len)
+				continue;
+			int j = 0;
+			while (j < len && fold(b[off + j] & 255) == k.charAt(j))
+				j++;
+			if (j == len)
+				return k;
+		}
+		return new String(b, off, len).toLowerCase(Locale.ENGLISH);
+	}
+
+	private static String known(String name, int h) {
+		for (int i = h & (KNOWN_TABLE.length - 1); KNOWN_TABLE[i] != null; i = (i + 1) & (KNOWN_TABLE.length - 1))
+			if (KNOWN_TABLE[i].equalsIgnoreCase(name))
+				return KNOWN_TABLE[i];
+		return null;
+	}
+
+	static int hash(String name) {
+		int h = 0;
+		for (int i = 0, l = name.length(); i < l; i++)
+			h = 31 * h + fold(name.charAt(i));
+		return h;
+	}
+
+	/**
+	 * same hash as of {@link #hash(String)} for name bytes
+	 */
+	static int hash(byte[] b, int off, int len) {
+		int h = 0;
+		for (int i = off, e = off + len; i < e; i++)
+			h = 31 * h + fold(b[i] & 255);
+		return h;
+	}
+
+	static int fold(int c) {
+		return c >= 'A' && c <= 'Z' ? c + 32 : c;
+	}
+}
@@ -0,0 +1,423 @@
+package com.drogatkin.mailbee;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.function.Consumer;
+
+/**
+ * Push style parser for data coming in chunks, as DATA of SMTP or LMTP
+ * received by a non blocking server. Nothing blocks, every
+ * {@link #feed(ByteBuffer)} parses as far as the data allow and keeps state
+ * of unfinished parts, along with a tail which can be a start of a delimiter
+ * or an incomplete header block, until the next call. Events come to a
+ * {@link MIMEHandler} as with {@link MIMEMessage#parse(java.io.InputStream,
+ * MIMEHandler)}, a part is reported complete as soon as its delimiter
+ * arrives.
+ * <p>
+ * An instance parses one message and isn't thread safe.
+ */
+public class IncrementalParser {
+	static final int MORE = -2; // more data are needed
+
+	static final int START = 0, HEADERS = 1, PREAMBLE = 2, CHILDREN = 3, EPILOGUE = 4, BODY = 5;
+
+	/**
+	 * parsing state of a part, the stack of them replaces recursion of a
+	 * blocking parse
+	 */
+	static class Frame {
+		final String boundary; // of a container, ends the part
+
+		final int level;
+
+		int state;
+
+		long offset;
+
+		int headerScanned; // bytes of header block checked for its end
+
+		String partBoundary;
+
+		OutputStream content;
+
+		boolean atStart; // content scan is at its start
+
+		ParseEvents.ParsePart event;
+
+		Frame(String boundary, int level) {
+			this.boundary = boundary;
+			this.level = level;
+		}
+	}
+
+	protected final MIMEMessage.ParsingContext pc = new MIMEMessage.ParsingContext();
+
+	protected final ArrayDeque<Frame> frames = new ArrayDeque<>();
+
+	protected MIMEMessage.MessageBuilder builder;
+
+	protected ParseMetrics metrics;
+
+	ParseEvents.Parse event;
+
+	boolean finishing;
+
+	long nanos;
+
+	public IncrementalParser(MIMEHandler handler) {
+		pc.parsBuf = new byte[16 * 1024];
+		// data come only by feed, so parsing helpers never read a stream
+		pc.inPlace = true;
+		pc.handler = handler;
+		frames.push(new Frame(null, 0));
+	}
+
+	public IncrementalParser(ParseOptions options) {
+		this(options, null);
+	}
+
+	/**
+	 * builds a message as {@link MIMEMessage#parse(java.io.InputStream,
+	 * ParseOptions)} does
+	 *
+	 * @param options
+	 * @param parts
+	 *            gets every part when it is complete, can be null
+	 */
+	public IncrementalParser(ParseOptions options, Consumer<MIMEMessage.Part> parts) {
+		this(new MIMEMessage.MessageBuilder(options, null) {
+			@Override
+			public void endPart(boolean last) throws IOException {
+				MIMEMessage p = parents.peek();
+				super.endPart(last);
+				if (parts != null && p instanceof MIMEMessage.Part)
+					parts.accept((MIMEMessage.Part) p);
+			}
+		});
+		builder = (MIMEMessage.MessageBuilder) pc.handler;
+		pc.sample = builder.sample;
+		pc.projection = options.projection;
+		metrics = options.metrics;
+	}
+
+	/**
+	 * parses next chunk of a message, all remaining bytes of the buffer are
+	 * consumed
+	 *
+	 * @param data
+	 * @throws IOException
+	 *             thrown by a handler
+	 */
+	public void feed(ByteBuffer data) throws IOException {
+		if (finishing)
+			throw new IllegalStateException("Parse is finished");
+		if (event == null) {
+			event = new ParseEvents.Parse();
+			event.begin();
+		}
+		int len = data.remaining();
+		int avail = pc.limitP - pc.lastPP;
+		byte[] buf = pc.parsBuf;
+		if (avail + len > buf.length)
+			buf = new byte[Math.max(avail + len, buf.length * 2)];
+		System.arraycopy(pc.parsBuf, pc.lastPP, buf, 0, avail);
+		data.get(buf, avail, len);
+		pc.parsBuf = buf;
+		pc.lastPP = 0;
+		pc.limitP = avail + len;
+		pc.readCount += len;
+		run();
+	}
+
+	public void feed(byte[] data, int off, int len) throws IOException {
+		feed(ByteBuffer.wrap(data, off, len));
+	}
+
+	/**
+	 * completes the parse at end of data, unfinished parts get completed as
+	 * at end of stream
+	 *
+	 * @throws IOException
+	 */
+	public void finish() throws IOException {
+		if (finishing)
+			return;
+		if (event == null) {
+			event = new ParseEvents.Parse();
+			event.begin();
+		}
+		finishing = true;
+		boolean done = false;
+		try {
+			run();
+			done = true;
+		} finally {
+			ParseMetrics.Sample sample = pc.sample;
+			if (metrics != null && sample != null) {
+				sample.nanos = nanos;
+				sample.bytesRead = pc.readCount;
+				sample.boundaryNanos -= sample.transferNanos;
+				sample.failed = !done;
+				metrics.record(sample);
+			}
+		}
+		if (event.shouldCommit()) {
+			event.size = pc.readCount;
+			event.parts = pc.parts;
+			event.commit();
+		}
+	}
+
+	/**
+	 * @return true when the message is parsed completely
+	 */
+	public boolean isDone() {
+		return frames.isEmpty();
+	}
+
+	/**
+	 * @return number of message bytes fed so far
+	 */
+	public long getBytesRead() {
+		return pc.readCount;
+	}
+
+	/**
+	 * @return message built when the parser was created with options, after
+	 *         {@link #finish()}
+	 */
+	public MIMEMessage getMessage() {
+		return builder == null ? null : builder.getMessage();
+	}
+
+	void run() throws IOException {
+		long start = pc.sample == null ? 0 : System.nanoTime();
+		boolean done = false;
+		try {
+			while (!frames.isEmpty() && step(frames.peek()))
+				;
+			done = true;
+		} finally {
+			if (pc.sample != null)
+				nanos += System.nanoTime() - start;
+			if (!done && builder != null)
+				builder.discard();
+		}
+	}
+
+	/**
+	 * advances a part
+	 *
+	 * @return false when more data are needed
+	 */
+	boolean step(Frame f) throws IOException {
+		ParseMetrics.Sample sample = pc.sample;
+		switch (f.state) {
+		case START:
+			f.event = new ParseEvents.ParsePart();
+			f.event.begin();
+			f.offset = pc.position();
+			pc.parts++;
+			pc.handler.startPart(f.level, f.offset);
+			pc.contentType = null;
+			if (sample != null) {
+				sample.parts++;
+				sample.depth = Math.max(sample.depth, f.level);
+			}
+			f.state = HEADERS;
+			return true;
+		case HEADERS:
+			if (!headersComplete(f) && !finishing)
+				return false;
+			if (sample != null) {
+				long start = System.nanoTime();
+				MIMEMessage.scanHeaders(pc, null, null);
+				sample.headerNanos += System.nanoTime() - start;
+			} else
+				MIMEMessage.scanHeaders(pc, null, null);
+			String contentType = pc.contentType;
+			f.partBoundary = contentType != null && contentType.toLowerCase().indexOf("multipart/") >= 0
+					? MIMEMessage.getBoundary(contentType) : null;
+			f.content = pc.handler.endHeaders(pc.position()) ? new MIMEMessage.ChunkOutputStream(pc.handler)
+					: MIMEMessage.NULL_SINK;
+			if (f.event.isEnabled())
+				f.event.contentType = contentType;
+			f.state = f.partBoundary != null ? PREAMBLE : BODY;
+			f.atStart = true;
+			return true;
+		case PREAMBLE: {
+			int r = scanContent(f, f.content, f.partBoundary);
+			if (r == MORE)
+				return false;
+			if (r > 0) {
+				f.state = CHILDREN;
+				frames.push(new Frame(f.partBoundary, f.level + 1));
+			} else {
+				f.state = EPILOGUE;
+				f.atStart = true;
+			}
+			return true;
+		}
+		case EPILOGUE:
+		case BODY: {
+			int r = scanContent(f, f.state == BODY ? f.content : MIMEMessage.NULL_SINK, f.boundary);
+			if (r == MORE)
+				return false;
+			boolean more = r > 0;
+			pc.handler.endPart(!more);
+			ParseEvents.ParsePart event = f.event;
+			if (event.shouldCommit()) {
+				event.level = f.level;
+				event.size = pc.position() - f.offset;
+				event.commit();
+			}
+			frames.pop();
+			Frame parent = frames.peek();
+			if (parent != null) {
+				if (more)
+					frames.push(new Frame(parent.partBoundary, parent.level + 1));
+				else {
+					parent.state = EPILOGUE;
+					parent.atStart = true;
+				}
+			}
+			return true;
+		}
+		default:
+			throw new IllegalStateException("State " + f.state);
+		}
+	}
+
+	/**
+	 * checks that the whole header block including the empty line ending it
+	 * is in the buffer, so headers get scanned without reading
+	 */
+	boolean headersComplete(Frame f) {
+		byte[] buf = pc.parsBuf;
+		int lim = pc.limitP;
+		int s = pc.lastPP + f.headerScanned; // always a line start
+		for (;;) {
+			int nl = s;
+			while (nl < lim && buf[nl] != '\n')
+				nl++;
+			if (nl == lim) {
+				f.headerScanned = s - pc.lastPP;
+				return false;
+			}
+			if (nl == s || (nl == s + 1 && buf[s] == '\r'))
+				return true;
+			s = nl + 1;
+		}
+	}
+
+	int scanContent(Frame f, OutputStream content, String boundary) throws IOException {
+		if (pc.sample == null)
+			return scanToBoundary(f, content, boundary);
+		long start = System.nanoTime();
+		try {
+			return scanToBoundary(f, content, boundary);
+		} finally {
+			pc.sample.boundaryNanos += System.nanoTime() - start;
+		}
+	}
+
+	/**
+	 * passes content up to a delimiter as
+	 * {@link MIMEMessage#readToBoundary(MIMEMessage.ParsingContext, java.io.InputStream, OutputStream, String)}
+	 * does, a tail which can be a start of the delimiter is kept
+	 *
+	 * @return 1 delimiter consumed, 0 close delimiter or end of data, MORE
+	 *         when data are needed
+	 */
+	int scanToBoundary(Frame f, OutputStream content, String boundary) throws IOException {
+		byte[] buf = pc.parsBuf;
+		if (boundary == null) {
+			if (pc.lastPP < pc.limitP)
+				content.write(buf, pc.lastPP, pc.limitP - pc.lastPP);
+			pc.lastPP = pc.limitP;
+			return finishing ? 0 : MORE;
+		}
+		BoundaryMatcher bm = pc.matcher(boundary);
+		byte[] pat = bm.pattern;
+		int pl = pat.length;
+		if (f.atStart) {
+			// a delimiter can start right away
+			if (pc.limitP - pc.lastPP < pl - 1) {
+				if (!finishing)
+					return MORE;
+			} else if (bm.startsAt(buf, pc.lastPP)) {
+				int r = delimiterEnd(pc.lastPP + pl - 1);
+				if (r == MORE)
+					return MORE;
+				if (r >= 0) {
+					f.atStart = false;
+					return r;
+				}
+				content.write(pat, 1, pl - 1);
+				pc.lastPP += pl - 1;
+			}
+			f.atStart = false;
+		}
+		for (;;) {
+			int lpp = pc.lastPP;
+			int lim = pc.limitP;
+			int p = bm.indexOf(buf, lpp, lim);
+			if (p >= 0) {
+				int d = BoundaryMatcher.start(buf, lpp, p);
+				content.write(buf, lpp, d - lpp);
+				pc.lastPP = d;
+				int r = delimiterEnd(p + pl);
+				if (r == MORE)
+					return MORE;
+				if (r >= 0)
+					return r;
+				if (d < p)
+					content.write('\r');
+				content.write(pat, 0, pl);
+				pc.lastPP = p + pl;
+				continue;
+			}
+			if (finishing) {
+				content.write(buf, lpp, lim - lpp);
+				pc.lastPP = lim;
+				return 0;
+			}
+			// keep a tail which can be start of the delimiter with its CR
+			int keep = Math.min(pl, lim - lpp);
+			content.write(buf, lpp, lim - lpp - keep);
+			pc.lastPP = lim - keep;
+			return MORE;
+		}
+	}
+
+	/**
+	 * ends a delimiter line after boundary at the position
+	 *
+	 * @return 1 delimiter line consumed, 0 close delimiter line or end of
+	 *         data, -1 not a delimiter, MORE when data are needed
+	 */
+	int delimiterEnd(int pos) {
+		byte[] buf = pc.parsBuf;
+		int lim = pc.limitP;
+		if (lim - pos < 2 && !finishing)
+			return MORE;
+		boolean close = lim - pos >= 2 && buf[pos] == '-' && buf[pos + 1] == '-';
+		for (int k = close ? 2 : 0;; k++) {
+			if (pos + k >= lim) {
+				if (!finishing)
+					return MORE;
+				pc.lastPP = lim;
+				return 0;
+			}
+			int c = buf[pos + k] & 255;
+			if (c == '\n') {
+				pc.lastPP = pos + k + 1;
+				return close ? 0 : 1;
+			}
+			if (!close && c != ' ' && c != '\t' && c != '\r')
+				return -1;
+		}
+	}
+}
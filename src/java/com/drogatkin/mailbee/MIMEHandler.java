@@ -0,0 +1,70 @@
+package com.drogatkin.mailbee;
+
+import java.io.IOException;
+
+/**
+ * Receives parsing events of a MIME message in SAX manner. Events come in
+ * document order, a part of multipart content is reported between
+ * startPart/endPart of its container.
+ * <p>
+ * Body bytes are delivered as they are read, nothing is accumulated by the
+ * parser, so a handler can process messages of any size in a constant memory.
+ * Chunk buffers are reused by the parser and can't be retained after the call.
+ *
+ * @see MIMEMessage#parse(java.io.InputStream, MIMEHandler)
+ */
+public interface MIMEHandler {
+	/**
+	 * a new part started, level 0 is a message itself
+	 *
+	 * @param level
+	 *            nesting level of the part
+	 * @param offset
+	 *            position of the part headers in the message
+	 * @throws IOException
+	 */
+	void startPart(int level, long offset) throws IOException;
+
+	/**
+	 * a header of current part, a folded header value comes unfolded
+	 *
+	 * @param name
+	 *            header name in lower case
+	 * @param value
+	 *            header value, can be null for malformed header lines
+	 * @throws IOException
+	 */
+	void header(String name, String value) throws IOException;
+
+	/**
+	 * all headers of current part are reported
+	 *
+	 * @param offset
+	 *            position of the part body in the message, body chunks
+	 *            are consecutive bytes starting there
+	 * @return false if body of the part isn't needed and has to be skipped,
+	 *         for multipart content it is preamble, nested parts are reported
+	 *         regardless
+	 * @throws IOException
+	 */
+	boolean endHeaders(long offset) throws IOException;
+
+	/**
+	 * next chunk of raw (transfer encoded) body content
+	 *
+	 * @param buf
+	 * @param off
+	 * @param len
+	 * @throws IOException
+	 */
+	void bodyChunk(byte[] buf, int off, int len) throws IOException;
+
+	/**
+	 * current part is complete
+	 *
+	 * @param last
+	 *            no more parts follow at the part level
+	 * @throws IOException
+	 */
+	void endPart(boolean last) throws IOException;
+}
@@ -2,26 +2,42 @@ package com.drogatkin.mailbee;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
+import java.io.UncheckedIOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Base64;
 import java.util.Collection;
 import java.util.Date;
 import java.util.HashMap;
-import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
 
 import org.aldan3.util.Stream;
 
 public class MIMEMessage {
 	public static final String SUBJECT = "subject";
 	public static final String FROM = "from";
+	public static final String TO = "to";
+	public static final String DATE = "date";
+	public static final String MESSAGE_ID = "message-id";
+	public static final String CONTENT_TYPE = "content-type";
+	public static final String CONTENT_TRANSFER_ENCODING = "content-transfer-encoding";
+	public static final String CONTENT_DISPOSITION = "content-disposition";
 	
 	public Map<String, Collection<String>> headers;
 
@@ -29,9 +45,15 @@ public class MIMEMessage {
 
 	public String body;
 
-	enum ParStat {
-		hCR, hLN, hSt, hHd, hVl, eoH, hIl, hVB, cPl, cCR, cLF, cDs, cEO, cCB, cRB, cBs, eFD, eSD, eCR,
-	}
+	ByteBuffer rawBody;
+
+	boolean transferDecoded; // rawBody holds transfer decoded content
+
+	/**
+	 * digest of transfer decoded content, when it is requested by
+	 * {@link ParseOptions#digest(String)}, multipart content has none
+	 */
+	public byte[] digest;
 
 	static final String BOUNDARY_LIM = "boundary=";
 
@@ -39,6 +61,16 @@ public class MIMEMessage {
 		byte[] parsBuf;
 		int lastPP;
 		int limitP;
+		long readCount; // bytes placed to parsBuf in total
+		boolean inPlace; // parsBuf is a message itself, can't be reused
+		HashMap<String, BoundaryMatcher> matchers = new HashMap<>();
+		byte[] scratch = new byte[256]; // header tokens
+		// streaming parse only
+		MIMEHandler handler;
+		String contentType;
+		ParseMetrics.Sample sample; // null when metrics are off
+		HeaderProjection projection; // null for all headers
+		int parts;
 
 		@Override
 		public String toString() {
@@ -46,97 +78,629 @@ public class MIMEMessage {
 					+ (parsBuf == null ? "NULL" : new String(parsBuf, lastPP, limitP)) + "]";
 		}
 
+		/**
+		 * @return position of the next unprocessed byte in the message
+		 */
+		long position() {
+			return readCount - (limitP - lastPP);
+		}
+
+		int appendScratch(int pos, byte[] b, int off, int len) {
+			if (pos + len > scratch.length)
+				scratch = Arrays.copyOf(scratch, Math.max(pos + len, scratch.length * 2));
+			System.arraycopy(b, off, scratch, pos, len);
+			return pos + len;
+		}
+
+		BoundaryMatcher matcher(String boundary) {
+			BoundaryMatcher bm = matchers.get(boundary);
+			if (bm == null)
+				matchers.put(boundary, bm = new BoundaryMatcher(boundary));
+			return bm;
+		}
+
 	}
 
-	static boolean debug = false;
+	// read size when only headers are needed, they usually fit
+	static final int HEADERS_BLOCK = 4 * 1024;
 
 	public static MIMEMessage parse(InputStream mesStream) throws IOException {
-		MIMEMessage res = new MIMEMessage();
-		byte buf[] = new byte[16 * 1024];
+		return parse(mesStream, new ParseOptions());
+	}
+
+	public static MIMEMessage parse(InputStream mesStream, ParseOptions options) throws IOException {
+		MessageBuilder builder = new MessageBuilder(options, null);
 		ParsingContext pc = new ParsingContext();
-		pc.parsBuf = buf;
-		
-		res.headers = parseHeaders(pc, mesStream);
-		res.parts = new ArrayList<>();
-		boolean canntParse = true;
-		String contentType = res.getHeader("content-type", "  ; charset=ascii");
-		String charSet = getMIMECharset(contentType);
-		//System.out.printf("Content type %s%n", contentType);
-		if (!contentType.isEmpty() && contentType.toLowerCase().indexOf("multipart/") >= 0) {
-			String contentTypeL = contentType.toLowerCase();
-			int bp = contentTypeL.indexOf(BOUNDARY_LIM);
-			//System.out.printf("bound ind %d in %s of %s%n", bp, contentTypeL, BOUNDARY_LIM);
-			if (bp >= 0) {
-				String boundary = contentType.substring(bp + BOUNDARY_LIM.length());
-				bp = boundary.indexOf(';');
-				if (bp > 0)
-					boundary = boundary.substring(0, bp);
-				boundary = unquote(boundary.trim());
-				//System.out.printf("boundary: %s, lpp: %d, lim: %d%n", boundary, pc.lastPP, pc.limitP);
-				ByteArrayOutputStream bos = new ByteArrayOutputStream();
-				readToBoundary(pc, mesStream, bos, boundary);
-				res.body = bos.toString();
-				boolean moreParts = true;
-				do {
-					Part p = parsePart(pc, mesStream, boundary);
-					moreParts = !p.last;
-					res.parts.add(p);
-				} while (moreParts);
-				canntParse = false;
+		pc.parsBuf = new byte[16 * 1024];
+		pc.handler = builder;
+		pc.sample = builder.sample;
+		pc.projection = options.projection;
+		boolean done = false;
+		try {
+			parse(pc, mesStream, options.metrics);
+			done = true;
+		} finally {
+			if (!done)
+				builder.discard();
+		}
+		return builder.getMessage();
+	}
+
+	/**
+	 * Parses a message kept in an array, the array gets scanned in place. In
+	 * lazy mode parts refer to their content in the array, so it should not be
+	 * modified after.
+	 *
+	 * @param message
+	 *            message bytes
+	 * @param options
+	 * @return parsed message
+	 * @throws IOException
+	 */
+	public static MIMEMessage parse(byte[] message, ParseOptions options) throws IOException {
+		return parse(ByteBuffer.wrap(message), options);
+	}
+
+	public static MIMEMessage parse(ByteBuffer message) throws IOException {
+		return parse(message, new ParseOptions());
+	}
+
+	/**
+	 * Parses remaining content of a buffer, the buffer position isn't changed.
+	 * A heap buffer gets scanned in place, content of a direct one, as a
+	 * mapped file, is copied in blocks to a 16K parsing buffer, so it's never
+	 * copied whole. In lazy mode parts refer to their content in the buffer.
+	 *
+	 * @param message
+	 * @param options
+	 * @return parsed message
+	 * @throws IOException
+	 */
+	public static MIMEMessage parse(ByteBuffer message, ParseOptions options) throws IOException {
+		MessageBuilder builder = new MessageBuilder(options, message);
+		boolean done = false;
+		try {
+			parse(message, builder, builder.sample, options);
+			done = true;
+		} finally {
+			if (!done)
+				builder.discard();
+		}
+		return builder.getMessage();
+	}
+
+	/**
+	 * parses remaining content of a buffer reporting events to a handler
+	 */
+	static void parse(ByteBuffer message, MIMEHandler handler, ParseMetrics.Sample sample, ParseOptions options)
+			throws IOException {
+		ParsingContext pc = new ParsingContext();
+		InputStream mesStream;
+		if (message.hasArray()) {
+			pc.parsBuf = message.array();
+			pc.lastPP = message.arrayOffset() + message.position();
+			pc.limitP = message.arrayOffset() + message.limit();
+			pc.readCount = message.remaining();
+			pc.inPlace = true;
+			// no more data come from the stream, so the array never gets overwritten
+			mesStream = new ByteArrayInputStream(new byte[0]);
+		} else {
+			pc.parsBuf = new byte[16 * 1024];
+			mesStream = new ByteBufferInputStream(message.duplicate());
+		}
+		pc.handler = handler;
+		pc.sample = sample;
+		pc.projection = options.projection;
+		parse(pc, mesStream, options.metrics);
+	}
+
+	public static MIMEMessage parse(Path message) throws IOException {
+		return parse(message, new ParseOptions());
+	}
+
+	/**
+	 * Parses a message file mapping it in memory. In lazy mode parts keep
+	 * their content in the mapping, so the file should not be truncated while
+	 * they are in use.
+	 *
+	 * @param message
+	 *            message file, like .eml
+	 * @param options
+	 * @return parsed message
+	 * @throws IOException
+	 */
+	public static MIMEMessage parse(Path message, ParseOptions options) throws IOException {
+		try (FileChannel fc = FileChannel.open(message, StandardOpenOption.READ)) {
+			long size = fc.size();
+			if (size > Integer.MAX_VALUE)
+				try (InputStream mesStream = Channels.newInputStream(fc)) {
+					return parse(mesStream, options);
+				}
+			return parse(fc.map(FileChannel.MapMode.READ_ONLY, 0, size), options);
+		}
+	}
+
+	/**
+	 * Reads headers of a message only, a body isn't read besides a block
+	 * following headers, which gets read ahead
+	 *
+	 * @param mesStream
+	 * @return message with headers, no body and parts
+	 * @throws IOException
+	 */
+	public static MIMEMessage parseHeadersOnly(InputStream mesStream) throws IOException {
+		return parseHeadersOnly(mesStream, null);
+	}
+
+	/**
+	 * Reads only wanted headers of a message, values of other headers are
+	 * skipped as bytes
+	 *
+	 * @param mesStream
+	 * @param names
+	 *            wanted header names in any case, null for all
+	 * @return message with headers, no body and parts
+	 * @throws IOException
+	 */
+	public static MIMEMessage parseHeadersOnly(InputStream mesStream, Set<String> names) throws IOException {
+		ParsingContext pc = new ParsingContext();
+		pc.parsBuf = new byte[HEADERS_BLOCK];
+		pc.projection = names == null ? null : new HeaderProjection(names);
+		return headersOnly(pc, mesStream);
+	}
+
+	/**
+	 * Reads headers of a message, content of a heap buffer is scanned in
+	 * place, pages of a mapped buffer past headers aren't touched
+	 *
+	 * @param message
+	 * @return message with headers, no body and parts
+	 * @throws IOException
+	 */
+	public static MIMEMessage parseHeadersOnly(ByteBuffer message) throws IOException {
+		return parseHeadersOnly(message, null);
+	}
+
+	public static MIMEMessage parseHeadersOnly(ByteBuffer message, Set<String> names) throws IOException {
+		ParsingContext pc = new ParsingContext();
+		pc.projection = names == null ? null : new HeaderProjection(names);
+		if (message.hasArray()) {
+			pc.parsBuf = message.array();
+			pc.lastPP = message.arrayOffset() + message.position();
+			pc.limitP = message.arrayOffset() + message.limit();
+			pc.readCount = message.remaining();
+			pc.inPlace = true;
+			return headersOnly(pc, new ByteArrayInputStream(new byte[0]));
+		}
+		pc.parsBuf = new byte[HEADERS_BLOCK];
+		return headersOnly(pc, new ByteBufferInputStream(message.duplicate()));
+	}
+
+	/**
+	 * Reads headers of a message file, the file is read by small blocks until
+	 * the end of headers
+	 *
+	 * @param message
+	 * @return message with headers, no body and parts
+	 * @throws IOException
+	 */
+	public static MIMEMessage parseHeadersOnly(Path message) throws IOException {
+		return parseHeadersOnly(message, null);
+	}
+
+	public static MIMEMessage parseHeadersOnly(Path message, Set<String> names) throws IOException {
+		try (FileChannel fc = FileChannel.open(message, StandardOpenOption.READ)) {
+			return parseHeadersOnly(Channels.newInputStream(fc), names);
+		}
+	}
+
+	static MIMEMessage headersOnly(ParsingContext pc, InputStream mesStream) throws IOException {
+		MIMEMessage result = new MIMEMessage();
+		result.headers = parseHeaders(pc, mesStream);
+		return result;
+	}
+
+	/**
+	 * Parses a message reporting its structure and content to a handler, no
+	 * part body is kept in memory by the parser
+	 *
+	 * @param mesStream
+	 *            message stream
+	 * @param handler
+	 *            events receiver
+	 * @throws IOException
+	 */
+	public static void parse(InputStream mesStream, MIMEHandler handler) throws IOException {
+		ParsingContext pc = new ParsingContext();
+		pc.parsBuf = new byte[16 * 1024];
+		pc.handler = handler;
+		parse(pc, mesStream, null);
+	}
+
+	/**
+	 * parses a message recording a sample of the context to metrics
+	 */
+	static void parse(ParsingContext pc, InputStream mesStream, ParseMetrics metrics) throws IOException {
+		ParseEvents.Parse event = new ParseEvents.Parse();
+		event.begin();
+		ParseMetrics.Sample sample = pc.sample;
+		if (metrics == null || sample == null) {
+			parsePart(pc, mesStream, null, 0);
+			commit(event, pc);
+			return;
+		}
+		long start = System.nanoTime();
+		boolean done = false;
+		try {
+			parsePart(pc, mesStream, null, 0);
+			done = true;
+		} finally {
+			sample.nanos = System.nanoTime() - start;
+			sample.bytesRead = pc.readCount;
+			// decoding of content happens while it's read
+			sample.boundaryNanos -= sample.transferNanos;
+			sample.failed = !done;
+			metrics.record(sample);
+		}
+		commit(event, pc);
+	}
+
+	private static void commit(ParseEvents.Parse event, ParsingContext pc) {
+		if (event.shouldCommit()) {
+			event.size = pc.readCount;
+			event.parts = pc.parts;
+			event.commit();
+		}
+	}
+
+	/**
+	 * parses a part up to the boundary or end of stream when boundary is null
+	 *
+	 * @return true if more parts follow
+	 */
+	static boolean parsePart(ParsingContext pc, InputStream mesStream, String boundary, int level)
+			throws IOException {
+		ParseEvents.ParsePart event = new ParseEvents.ParsePart();
+		event.begin();
+		MIMEHandler handler = pc.handler;
+		ParseMetrics.Sample sample = pc.sample;
+		long offset = pc.position();
+		pc.parts++;
+		handler.startPart(level, offset);
+		pc.contentType = null;
+		if (sample != null) {
+			sample.parts++;
+			sample.depth = Math.max(sample.depth, level);
+			long start = System.nanoTime();
+			scanHeaders(pc, mesStream, null);
+			sample.headerNanos += System.nanoTime() - start;
+		} else
+			scanHeaders(pc, mesStream, null);
+		String contentType = pc.contentType;
+		String partBoundary = contentType != null && contentType.toLowerCase().indexOf("multipart/") >= 0
+				? getBoundary(contentType) : null;
+		OutputStream content = handler.endHeaders(pc.position()) ? new ChunkOutputStream(handler) : NULL_SINK;
+		boolean more;
+		if (partBoundary != null) {
+			if (scanContent(pc, mesStream, content, partBoundary)) // preamble
+				while (parsePart(pc, mesStream, partBoundary, level + 1))
+					;
+			more = scanContent(pc, mesStream, NULL_SINK, boundary); // epilogue
+		} else
+			more = scanContent(pc, mesStream, content, boundary);
+		handler.endPart(!more);
+		if (event.shouldCommit()) {
+			event.contentType = contentType;
+			event.level = level;
+			event.size = pc.position() - offset;
+			event.commit();
+		}
+		return more;
+	}
+
+	/**
+	 * reads content up to the boundary, or end when it's null, measuring time
+	 */
+	static boolean scanContent(ParsingContext pc, InputStream mesStream, OutputStream content, String boundary)
+			throws IOException {
+		if (pc.sample == null)
+			return readToEnd(pc, mesStream, content, boundary);
+		long start = System.nanoTime();
+		try {
+			return readToEnd(pc, mesStream, content, boundary);
+		} finally {
+			pc.sample.boundaryNanos += System.nanoTime() - start;
+		}
+	}
+
+	static boolean readToEnd(ParsingContext pc, InputStream mesStream, OutputStream content, String boundary)
+			throws IOException {
+		if (boundary != null)
+			return readToBoundary(pc, mesStream, content, boundary);
+		if (pc.lastPP < pc.limitP)
+			content.write(pc.parsBuf, pc.lastPP, pc.limitP - pc.lastPP);
+		int l;
+		while ((l = mesStream.read(pc.parsBuf)) > 0) {
+			pc.readCount += l;
+			content.write(pc.parsBuf, 0, l);
+		}
+		pc.lastPP = pc.limitP = 0;
+		return false;
+	}
+
+	static final OutputStream NULL_SINK = new OutputStream() {
+		@Override
+		public void write(int b) {
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+		}
+	};
+
+	static class ChunkOutputStream extends OutputStream {
+		MIMEHandler handler;
+
+		ChunkOutputStream(MIMEHandler handler) {
+			this.handler = handler;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			if (len > 0)
+				handler.bodyChunk(b, off, len);
+		}
+	}
+
+	/**
+	 * Builds a message tree from parsing events, it is how
+	 * {@link MIMEMessage#parse(InputStream)} works
+	 */
+	public static class MessageBuilder implements MIMEHandler {
+		protected MIMEMessage message;
+
+		protected ParseOptions options;
+
+		protected ByteBuffer source;
+
+		protected ArrayDeque<MIMEMessage> parents = new ArrayDeque<>();
+
+		protected ArrayDeque<Content> contents = new ArrayDeque<>();
+
+		ParseMetrics.Sample sample;
+
+		// spilled content, its files are released when a parse fails
+		ArrayList<SpillOutputStream> spills;
+
+		static class Content {
+			OutputStream bos; // null when content is kept in source
+			OutputStream sink; // bos or a decoder writing to it
+			OutputStream digestSink; // decoder writing to digest when content isn't decoded
+			MessageDigest digest;
+			long offset;
+			long length;
+		}
+
+		public MessageBuilder() {
+			this(new ParseOptions(), null);
+		}
+
+		/**
+		 * @param options
+		 * @param source
+		 *            the whole message with position at its start, when
+		 *            given, lazily decoded parts refer to it instead of
+		 *            holding a copy of their content
+		 */
+		public MessageBuilder(ParseOptions options, ByteBuffer source) {
+			this.options = options;
+			this.source = options.lazy && !options.decodeTransfer ? source : null;
+			if (options.metrics != null)
+				sample = new ParseMetrics.Sample();
+		}
+
+		@Override
+		public void startPart(int level, long offset) throws IOException {
+			MIMEMessage p;
+			if (level == 0) {
+				p = message = new MIMEMessage();
+				p.parts = new ArrayList<>();
 			} else {
-				// warning no boundary found for multipart
+				Part part = new Part();
+				MIMEMessage parent = parents.peek();
+				if (parent.parts == null)
+					parent.parts = new ArrayList<>();
+				parent.parts.add(part);
+				part.section = parent instanceof Part ? ((Part) parent).section + "." + parent.parts.size()
+						: String.valueOf(parent.parts.size());
+				p = part;
 			}
+			p.headers = new HeaderTable();
+			parents.push(p);
+			contents.push(new Content());
 		}
-		if (canntParse) {
-			ByteArrayOutputStream bos = new ByteArrayOutputStream();
-			if (pc.lastPP < pc.limitP) {
-				bos.write(pc.parsBuf, pc.lastPP, pc.limitP - pc.lastPP);
+
+		@Override
+		public void header(String name, String value) throws IOException {
+			appendHeader(parents.peek().headers, name, value);
+		}
+
+		@Override
+		public boolean endHeaders(long offset) throws IOException {
+			Content c = contents.peek();
+			c.offset = offset;
+			MIMEMessage p = parents.peek();
+			if (options.selector != null && p instanceof Part && !isMultipart(p)
+					&& !options.selector.accept(((Part) p).section, (Part) p)) {
+				((Part) p).skipped = true;
+				return false;
 			}
-			Stream.copyStream(mesStream, bos);
-			if ("quoted-printable".equalsIgnoreCase(res.getHeader("Content-Transfer-Encoding", "").trim())) {
-				res.body = Stream.streamToString(
-						new MIMEUtil.QDecoderStream(new ByteArrayInputStream(bos.toByteArray())), charSet, 0); // 1024 * 500
-			} else { // TODO check for binary content 
-				res.body = Stream.streamToString(new ByteArrayInputStream(bos.toByteArray()), charSet, 0);
+			if (options.digest != null && !isMultipart(p))
+				c.digest = ParseOptions.newDigest(options.digest);
+			if (source == null) {
+				if (options.spillThreshold > 0) {
+					SpillOutputStream sos = new SpillOutputStream(options.spillThreshold, options.spillDirectory);
+					if (spills == null)
+						spills = new ArrayList<>();
+					spills.add(sos);
+					c.sink = c.bos = sos;
+				} else
+					c.sink = c.bos = new ByteArrayOutputStream();
+				if (options.decodeTransfer) {
+					c.sink = MIMEUtil.decodingStream(c.digest == null ? c.bos : new DigestOutputStream(c.bos, c.digest),
+							p.getHeader(CONTENT_TRANSFER_ENCODING, null));
+					p.transferDecoded = true;
+					return true;
+				}
 			}
+			if (c.digest != null)
+				c.digestSink = MIMEUtil.decodingStream(new DigestOutputStream(NULL_SINK, c.digest),
+						p.getHeader(CONTENT_TRANSFER_ENCODING, null));
+			return true;
 		}
-		return res;
-	}
-	
-	static Part parsePart(ParsingContext pc, InputStream mesStream, String boundary) throws IOException {
-		Part p = new Part();
-		p.headers = parseHeaders(pc, mesStream);
-		ByteArrayOutputStream bos = new ByteArrayOutputStream();
-		String contentType = p.getHeader("content-type", "  ; charset=ascii");
-		String charSet = getMIMECharset(contentType);
-		if (contentType.toLowerCase().indexOf("multipart/") >= 0) {
-			p.parts = new ArrayList<>();
-		     String PartBoundary = getBoundary(contentType);
-		     Part p1 = null;
-		     readToBoundary(pc, mesStream, bos, PartBoundary);
-		     p.body = bos.toString();
-		     do {
-		    	 p1 = parsePart(pc, mesStream, PartBoundary);
-		    	 p.parts.add(p1);
-		     } while(!p1.last);
-		     p.last = !readToBoundary(pc, mesStream, bos, boundary); // should be end
-		} else {
-			p.last = !readToBoundary(pc, mesStream, bos, boundary);
-			if ("quoted-printable".equalsIgnoreCase(p.getHeader("Content-Transfer-Encoding", "").trim())) {
-				//System.out.println("*****************************\r\n"+bos.toString());
-				p.body = Stream.streamToString(
-						new MIMEUtil.QDecoderStream(new ByteArrayInputStream(bos.toByteArray())), charSet, 0);
-			} else {
-				if ("binary".equalsIgnoreCase(charSet)) {
-					// TODO maybe encode to BASE64??
-					p.body = Base64.getEncoder().encodeToString(bos.toByteArray());
+
+		@Override
+		public void bodyChunk(byte[] buf, int off, int len) throws IOException {
+			Content c = contents.peek();
+			if (c.sink != null) {
+				if (sample != null && c.sink != c.bos) {
+					long start = System.nanoTime();
+					c.sink.write(buf, off, len);
+					sample.transferNanos += System.nanoTime() - start;
 				} else
-					p.body = bos.toString(charSet);
+					c.sink.write(buf, off, len);
 			}
+			if (c.digestSink != null) {
+				if (sample != null) {
+					long start = System.nanoTime();
+					c.digestSink.write(buf, off, len);
+					sample.transferNanos += System.nanoTime() - start;
+				} else
+					c.digestSink.write(buf, off, len);
+			}
+			c.length += len;
+		}
+
+		@Override
+		public void endPart(boolean last) throws IOException {
+			MIMEMessage p = parents.pop();
+			Content c = contents.pop();
+			if (p instanceof Part)
+				((Part) p).last = last;
+			if (p instanceof Part && ((Part) p).skipped)
+				return;
+			if (c.sink != null)
+				c.sink.close();
+			if (c.digest != null) {
+				if (c.digestSink != null)
+					c.digestSink.close();
+				p.digest = c.digest.digest();
+			}
+			if (c.bos == null) {
+				ByteBuffer raw = source.duplicate();
+				raw.position(raw.position() + (int) c.offset);
+				raw.limit(raw.position() + (int) c.length);
+				p.rawBody = raw.slice();
+			} else if (c.bos instanceof SpillOutputStream) {
+				SpillOutputStream sos = (SpillOutputStream) c.bos;
+				spills.remove(sos);
+				p.rawBody = sos.toByteBuffer();
+				if (sos.isSpilled())
+					return;
+			} else
+				p.rawBody = ByteBuffer.wrap(((ByteArrayOutputStream) c.bos).toByteArray());
+			if (sample != null && c.bos != null)
+				sample.bytesBuffered += p.rawBody.remaining();
+			if (!options.lazy) {
+				// decoded content of binary part has no use as a string, a
+				// preamble of multipart is text
+				boolean string = !p.transferDecoded || isText(p.getHeader(CONTENT_TYPE, "")) || isMultipart(p);
+				if (string) {
+					long start = sample == null ? 0 : System.nanoTime();
+					p.body = p.decodeBody();
+					if (sample != null)
+						sample.charsetNanos += System.nanoTime() - start;
+				}
+				// raw content is kept whenever there is no body
+				if (string && !p.transferDecoded)
+					p.rawBody = null;
+			}
+		}
+
+		public MIMEMessage getMessage() {
+			return message;
+		}
+
+		/**
+		 * releases temporary files of content when a parse failed, the
+		 * message is not usable after
+		 */
+		public void discard() {
+			if (spills == null)
+				return;
+			for (SpillOutputStream sos : spills)
+				try {
+					sos.discard();
+				} catch (IOException e) {
+					// the file is removed on exit
+				}
+			spills = null;
+		}
+
+		static boolean isMultipart(MIMEMessage p) {
+			String contentType = p.getHeader(CONTENT_TYPE, "");
+			return contentType.toLowerCase().indexOf("multipart/") >= 0 && getBoundary(contentType) != null;
 		}
-		return p;
 	}
-	
+
+	/**
+	 * transfer and charset decoding of raw body content
+	 */
+	String decodeBody() throws IOException {
+		ByteBuffer raw = rawBody.duplicate();
+		String contentType = getHeader("content-type", "  ; charset=ascii");
+		if (contentType.toLowerCase().indexOf("multipart/") >= 0 && getBoundary(contentType) != null)
+			return new String(toBytes(raw));
+		boolean binary = "binary".equalsIgnoreCase(charsetParameter(contentType));
+		String encoding = transferDecoded ? null : getHeader(CONTENT_TRANSFER_ENCODING, "").trim();
+		if (!isText(contentType) || binary) {
+			// binary content is given in base64 as it is in a message
+			if ("base64".equalsIgnoreCase(encoding))
+				return new String(toBytes(raw), StandardCharsets.ISO_8859_1);
+			if (transferDecoded || binary)
+				return Base64.getEncoder().encodeToString(toBytes(raw));
+		}
+		Charset charSet = getCharset(contentType);
+		if ("quoted-printable".equalsIgnoreCase(encoding) || "base64".equalsIgnoreCase(encoding)) {
+			ByteArrayOutputStream bos = new ByteArrayOutputStream(raw.remaining());
+			Stream.copyStream(MIMEUtil.decodingStream(new ByteBufferInputStream(raw), encoding), bos);
+			return Charsets.decode(bos.toByteArray(), charSet);
+		}
+		if (raw.hasArray())
+			return Charsets.decode(raw.array(), raw.arrayOffset() + raw.position(), raw.remaining(), charSet);
+		return Charsets.decode(toBytes(raw), charSet);
+	}
+
+	static boolean isText(String contentType) {
+		contentType = contentType.trim();
+		return contentType.isEmpty() || contentType.charAt(0) == ';'
+				|| contentType.regionMatches(true, 0, "text/", 0, 5)
+				|| contentType.regionMatches(true, 0, "message/", 0, 8);
+	}
+
+	static byte[] toBytes(ByteBuffer buf) {
+		if (buf.hasArray() && buf.arrayOffset() == 0 && buf.position() == 0 && buf.limit() == buf.array().length)
+			return buf.array();
+		byte[] result = new byte[buf.remaining()];
+		buf.duplicate().get(result);
+		return result;
+	}
+
 	static String getBoundary(String contentType) {
 		String contentTypeL = contentType.toLowerCase();
 		int bp = contentTypeL.indexOf(BOUNDARY_LIM);
@@ -152,16 +716,44 @@ public class MIMEMessage {
 	}
 
 	public static String getMIMECharset(String header) {
-		int cp = header.toLowerCase().indexOf("charset=");
+		String charset = charsetParameter(header);
+		return charset == null ? "ASCII" : MIMEUtil.javaCharset(charset);
+	}
+
+	/**
+	 * resolves charset of content type through {@link Charsets}, so a name is
+	 * looked up once
+	 *
+	 * @return charset, US-ASCII when not specified
+	 * @throws UnsupportedEncodingException
+	 *             charset is not available
+	 */
+	public static Charset getCharset(String contentType) throws UnsupportedEncodingException {
+		String charset = charsetParameter(contentType);
+		return charset == null ? StandardCharsets.US_ASCII : Charsets.forName(charset);
+	}
+
+	/**
+	 * @return charset name as it is in a header or null
+	 */
+	static String charsetParameter(String header) {
+		int cp = indexOfIgnoreCase(header, "charset=");
 		if (cp < 0)
-			return "ASCII";
+			return null;
 		String charset = header.substring(cp + "charset=".length()).trim();
 		cp = charset.indexOf(';');
 		if (cp > 0)
 			charset = charset.substring(0, cp);
 		if (charset.startsWith("3D"))
 			charset = charset.substring(2); // work around of some mailers bug
-		return MIMEUtil.javaCharset(unquote(charset));
+		return unquote(charset.trim());
+	}
+
+	static int indexOfIgnoreCase(String s, String lowerCase) {
+		for (int i = 0, e = s.length() - lowerCase.length(); i <= e; i++)
+			if (s.regionMatches(true, i, lowerCase, 0, lowerCase.length()))
+				return i;
+		return -1;
 	}
 
 	public static String unquote(String s) {
@@ -173,6 +765,10 @@ public class MIMEMessage {
 	}
 
 	public static void appendHeader(Map<String, Collection<String>> headers, String name, String value) {
+		if (headers instanceof HeaderTable) {
+			((HeaderTable) headers).add(name, value);
+			return;
+		}
 		name = name.toLowerCase();
 		Collection<String> values;
 		if (headers.containsKey(name))
@@ -187,319 +783,219 @@ public class MIMEMessage {
 
 	public static Map<String, Collection<String>> parseHeaders(ParsingContext pc, InputStream mesStream)
 			throws IOException {
+		Map<String, Collection<String>> result = new HeaderTable();
+		scanHeaders(pc, mesStream, result);
+		return result;
+	}
+
+	private static void putHeader(ParsingContext pc, Map<String, Collection<String>> result, String name,
+			String value) throws IOException {
+		if (result != null) {
+			appendHeader(result, name, value);
+			return;
+		}
+		if (pc.sample != null)
+			pc.sample.headers++;
+		if (pc.contentType == null && value != null && CONTENT_TYPE.equals(name))
+			pc.contentType = value;
+		pc.handler.header(name, value);
+	}
+
+	/**
+	 * reads headers to a map, or reports them to a parsing context handler
+	 * when the map is null
+	 */
+	static void scanHeaders(ParsingContext pc, InputStream mesStream, Map<String, Collection<String>> result)
+			throws IOException {
 		// TODO make it perhaps smarter and if first line not recognizable as a header, then return and
 		// make rest read as body
-		Map<String, Collection<String>> result = new HashMap<>();
-		ParStat st = ParStat.hHd;
-
-		if (pc.parsBuf == null) {
-			pc.parsBuf = new byte[16 * 1024];
-			pc.lastPP = 0;
-			pc.limitP = 0;
-		}
-		int lim = pc.limitP;
-		int lpp = pc.lastPP;
-		byte buf[] = pc.parsBuf;
-		byte[] hn = new byte[0];
-		byte[] hv = new byte[0];
-		int l;
-		parse_header: do {
-			if (lpp >= lim) {
-				l = mesStream.read(buf);
-				if (l <= 0)
-					break;
-				lpp = 0;
-				lim = lpp + l;
-			}
-			for (int p = lpp; p < lim; p++) {
-				//System.out.print(new String(buf, p, 1));
-				switch (st) {
-				case hSt:
-					if ((buf[p] & 255) == ' ' || (buf[p] & 255) == 9) { // \t
-						st = ParStat.hVl;
-						lpp = p;
-					} else if ((buf[p] & 255) == '\r') {
-						st = ParStat.hLN;
-						//System.out.print("---");
-					} else {
-						lpp = p;
-						st = ParStat.hHd;
-						if (hn.length > 0) {
-							appendHeader(result, new String(hn), new String(hv));
-							hn = new byte[0];
-							hv = new byte[0];
-						}
-					}
-					break;
-				case hHd:
-					if ((buf[p] & 255) == '\r' || (buf[p] & 255) == '\n') {
-						// illegal header line
-						st = ParStat.hIl;
-						hn = concat(hn, Arrays.copyOfRange(buf, lpp, p));
-						// TODO if result.isEmpty() -> not MIME, return empty headers, and let read rest as plain body
-						appendHeader(result, new String(hn), null);
-						lpp = p + 1;
-					} else if ((buf[p] & 255) == ':') {
-						hn = concat(hn, Arrays.copyOfRange(buf, lpp, p));
-						st = ParStat.hVB;
-						lpp = p + 1;
-					}
+		int nameLen = -1; // pending header name length in scratch, value follows it
+		int sl = 0; // scratch length
+		HeaderProjection projection = pc.projection;
+		boolean skip = false; // lines of unwanted header
+		for (;;) {
+			// find a line end, a line is always kept whole in parsing buffer
+			int ls = pc.lastPP, le = ls;
+			boolean eof = false;
+			for (;;) {
+				byte[] buf = pc.parsBuf;
+				int lim = pc.limitP;
+				while (le < lim && buf[le] != '\n')
+					le++;
+				if (le < lim)
 					break;
-				case hIl:
-					if ((buf[p] & 255) == '\n')
-						st = ParStat.hLN;
-					else if ((buf[p] & 255) != '\r' && (buf[p] & 255) != ':') {
-						st = ParStat.hHd;
-						lpp = p;
-					}
+				int scanned = le - ls;
+				if (!fill(pc, mesStream, scanned + 1)) {
+					eof = true;
+					le = pc.limitP;
+					ls = pc.lastPP;
 					break;
-				case hVB:
-					if ((buf[p] & 255) != ' ' && (buf[p] & 255) != 9) {
-						st = ParStat.hVl;
-						lpp = p;
-					}
-					//break;
-				case hVl:
-					if ((buf[p] & 255) == '\r') {
-						hv = concat(hv, Arrays.copyOfRange(buf, lpp, p));
-						lpp = p + 1;
-						st = ParStat.hCR;
-					} else if ((buf[p] & 255) == '\n') {
-						hv = concat(hv, Arrays.copyOfRange(buf, lpp, p));
-						lpp = p + 1;
-						st = ParStat.hSt;
-					}
-					break;
-				case hCR:
-					if ((buf[p] & 255) == '\n')
-						st = ParStat.hSt;
-					else
-						st = ParStat.hIl;
-					break;
-				case hLN:
-					if ((buf[p] & 255) == '\n') {
-						st = ParStat.eoH;
-						lpp = p + 1;
-						if (hn.length > 0) {
-							appendHeader(result, new String(hn), new String(hv));
-							break parse_header;
-						}
-					} else
-						st = ParStat.hSt;
-					break;
-				case eoH:
-
+				}
+				ls = pc.lastPP;
+				le = ls + scanned;
+			}
+			byte[] buf = pc.parsBuf;
+			int next = eof ? le : le + 1;
+			if (le > ls && buf[le - 1] == '\r')
+				le--;
+			if (nameLen >= 0 && (le == ls || (buf[ls] != ' ' && buf[ls] != '\t'))) {
+				// not a continuation line, complete pending header
+				putHeader(pc, result, HeaderTable.name(pc.scratch, 0, nameLen),
+						new String(pc.scratch, nameLen, sl - nameLen));
+				nameLen = -1;
+			}
+			pc.lastPP = next;
+			if (le == ls) // empty line
+				break;
+			if (skip && (buf[ls] == ' ' || buf[ls] == '\t')) {
+				if (eof)
 					break;
+				continue;
+			}
+			skip = false;
+			if (nameLen >= 0) {
+				// folded value keeps leading white space of a line
+				sl = pc.appendScratch(sl, buf, ls, le - ls);
+			} else {
+				int c = ls;
+				while (c < le && buf[c] != ':')
+					c++;
+				if (projection != null && !projection.contains(buf, ls, c - ls)) {
+					skip = true;
+				} else if (c == le) {
+					// illegal header line
+					putHeader(pc, result, new String(buf, ls, le - ls), null);
+				} else {
+					sl = pc.appendScratch(0, buf, ls, c - ls);
+					nameLen = sl;
+					c++;
+					while (c < le && (buf[c] == ' ' || buf[c] == '\t'))
+						c++;
+					sl = pc.appendScratch(sl, buf, c, le - c);
 				}
-			} // end for
-				// adding remaining
-			if (st == ParStat.hHd) {
-				hn = concat(hn, Arrays.copyOfRange(buf, lpp, lim));
-			} else if (st == ParStat.hVl) {
-				hv = concat(hv, Arrays.copyOfRange(buf, lpp, lim));
 			}
-			lim = lpp = 0;
-		} while (st != ParStat.eoH);
-		pc.lastPP = lpp;
-		pc.limitP = lim;
-		return result;
+			if (eof) {
+				if (nameLen >= 0)
+					putHeader(pc, result, HeaderTable.name(pc.scratch, 0, nameLen),
+							new String(pc.scratch, nameLen, sl - nameLen));
+				break;
+			}
+		}
 	}
 
+	/**
+	 * copies content to the next delimiter line of the boundary, the delimiter
+	 * gets consumed
+	 *
+	 * @return true if the delimiter found, false at close delimiter or end of
+	 *         stream
+	 */
 	public static boolean readToBoundary(ParsingContext pc, InputStream mesStream, OutputStream content,
 			String boundary) throws IOException {
-		ParStat st = ParStat.cLF;
-		int lim = pc.limitP;
-		int lpp = pc.lastPP;
-		int bl = boundary.length();
-		int bc = 0;
-		byte[] bd = new byte[0];
-		boolean heldCRLFD = false, heldCR = false;
-		byte buf[] = pc.parsBuf;
+		BoundaryMatcher bm = pc.matcher(boundary);
+		byte[] pat = bm.pattern;
+		int pl = pat.length;
+		// a delimiter can start right away
+		if (fill(pc, mesStream, pl - 1) && bm.startsAt(pc.parsBuf, pc.lastPP)) {
+			pc.lastPP += pl - 1;
+			int r = delimiterEnd(pc, mesStream);
+			if (r >= 0)
+				return r > 0;
+			content.write(pat, 1, pl - 1);
+		}
 		do {
-			if (lpp >= lim) {
-				int l = mesStream.read(buf);
-				if (l <= 0)
-					break;
-				lpp = 0;
-				lim = lpp + l;
+			byte[] buf = pc.parsBuf;
+			int lpp = pc.lastPP;
+			int lim = pc.limitP;
+			int p = bm.indexOf(buf, lpp, lim);
+			if (p >= 0) {
+				int d = BoundaryMatcher.start(buf, lpp, p);
+				content.write(buf, lpp, d - lpp);
+				pc.lastPP = p + pl;
+				int r = delimiterEnd(pc, mesStream);
+				if (r >= 0)
+					return r > 0;
+				if (d < p)
+					content.write('\r');
+				content.write(pat, 0, pl);
+				continue;
 			}
-			for (int p = lpp; p < lim; p++) {
-				if (debug)
-					System.out.println(st);
-				//System.out.print(new String(buf, p, 1));
-				switch (st) {
-				case cPl:
-					if ((buf[p] & 255) == '\r')
-						st = ParStat.cCR;
-					break;
-				case cCR:
-					if ((buf[p] & 255) == '\n')
-						st = ParStat.cLF;
-					else {
-						st = ParStat.cPl;
-					}
-					break;
-				case cLF:
-					if (debug)
-						System.out.println(new String(buf, p, 1));
-					if ((buf[p] & 255) == '-') {
-						st = ParStat.cDs;
-					} else if ((buf[p] & 255) == '\r') {
-						st = ParStat.cCR;
-					} else
-						st = ParStat.cPl;
-					break;
-				case cDs:
-					if ((buf[p] & 255) == '-') {
-						//System.out.println("boundary de ");
-						st = ParStat.cBs;
-						if (lpp < p - 4) {
-							if (heldCR) {
-								content.write('\r');
-								heldCR = false;
-							}
-							content.write(buf, lpp, p - lpp - 3); // do not write CRLF-- yet
-							//System.out.print("B****>["+lpp+","+p+"]"+new String(buf, lpp, p-lpp-3));
-						}// else {
-							//System.out.println("!!!!No dumping buf content lpp "+lpp+", pos "+p);
-						//}
-						bd = new byte[0];
-						lpp = p + 1;
-						bc = 1;
-					} else if ((buf[p] & 255) == '\r') {
-						st = ParStat.cCR;
-					} else {
-						if (heldCRLFD) {
-							content.write('\r');
-							content.write('\n');
-							content.write('-');
-							heldCRLFD = false;
-						}
-						st = ParStat.cPl;
-					}
-					break;
-				case cBs:
-					//System.out.print((char)buf[p]);
-					if ((buf[p] & 255) == '\n') {
-						content.write('\r');
-						content.write('\n');
-						content.write("--".getBytes());
-						st = ParStat.cPl;
-					} else if ((buf[p] & 255) == '\r') {
-						content.write('\r');
-						content.write('\n');
-						content.write("--".getBytes());
-						st = ParStat.cCR;
-					} else if (bc == bl) {
-						bd = concat(bd, Arrays.copyOfRange(buf, lpp, p + 1));
-						//System.out.printf("compare %n%s%n%s%n", boundary, new String(bd) );
-						if (boundary.equals(new String(bd))) {
-							//System.out.println("match "+buf[p]);
-							st = ParStat.cCB;
-						} else {
-							content.write('\r');
-							content.write('\n');
-							content.write("--".getBytes());
-							content.write(bd);
-							st = ParStat.cPl;
-							lpp = p + 1;
-						}
-					} else
-						bc++;
-					break;
-				case cCB:
-					if ((buf[p] & 255) == '\r') {
-						st = ParStat.cRB;
-					} else if ((buf[p] & 255) == '-') {
-						//System.out.println("end -");
-						st = ParStat.eFD;
-					} else {
-						content.write('\r');
-						content.write('\n');
-						content.write(bd);
-						st = ParStat.cPl;
-						lpp = p;
-					}
-					break;
-				case cRB:
-					if ((buf[p] & 255) == '\n') {
-						st = ParStat.cEO;
-						//System.out.printf("found ending bdr %d %d%n", lpp, lim);
-						lpp = p + 1;
-					}
-					break;
-				case cEO:
-					break;
-				case eFD:
-					if ((buf[p] & 255) == '-') {
-						st = ParStat.eSD;
-						//System.out.println("end --");
-					} else if ((buf[p] & 255) == '\r')
-						st = ParStat.cCR;
-					else
-						st = ParStat.cPl;
-					break;
-				case eSD:
-					if ((buf[p] & 255) == '\r')
-						st = ParStat.eCR;
-					else
-						st = ParStat.cPl;
-					break;
-				case eCR:
-					if ((buf[p] & 255) == '\n') {
-						st = ParStat.cEO;
-						return false;
-					} else
-						st = ParStat.cPl;
-				}
-				if (st == ParStat.cEO) {
-					//System.out.printf("pos %d lim %d%n", p, lim);
-					break;
-				}
-			}
-			if (false) {
-				System.out.println("State at end of buff:" + st);
-				if (st == ParStat.cBs) {
-					System.out.println(new String(bd) + " at " + bc + " " + new String(buf, lpp, lim - lpp));
-				} //else
-					//System.out.println("rest: "+new String(buf, lpp, lim - lpp));
-			}
-			if (heldCR) {
-				content.write('\r');
-				heldCR = false;
+			// keep a tail which can be start of the delimiter with its CR
+			int keep = Math.min(pl, lim - lpp);
+			content.write(buf, lpp, lim - lpp - keep);
+			pc.lastPP = lim - keep;
+		} while (fill(pc, mesStream, pl + 1));
+		if (pc.lastPP < pc.limitP)
+			content.write(pc.parsBuf, pc.lastPP, pc.limitP - pc.lastPP);
+		pc.lastPP = pc.limitP;
+		return false;
+	}
+
+	/**
+	 * Ends a delimiter line after boundary
+	 *
+	 * @return 1 delimiter line consumed, 0 close delimiter line or end of
+	 *         stream, -1 not a delimiter, nothing consumed
+	 */
+	static int delimiterEnd(ParsingContext pc, InputStream mesStream) throws IOException {
+		boolean close = fill(pc, mesStream, 2) && pc.parsBuf[pc.lastPP] == '-' && pc.parsBuf[pc.lastPP + 1] == '-';
+		for (int k = close ? 2 : 0;; k++) {
+			if (!fill(pc, mesStream, k + 1)) {
+				pc.lastPP = pc.limitP;
+				return 0;
 			}
-			 
-			if (st == ParStat.cDs) {
-				content.write(buf, lpp, lim - lpp - 3);
-				heldCRLFD = true;
-				//System.out.print("E****>["+lpp+","+lim+"]"+new String(buf, lpp, lim-lpp-3));
-			} else if (st == ParStat.cBs) {
-				bd = concat(bd, Arrays.copyOfRange(buf, lpp, lim));
-			} else if (st == ParStat.cPl || st == ParStat.cLF) {
-				content.write(buf, lpp, lim - lpp);
-				//System.out.print("E****>["+lpp+","+lim+"]"+new String(buf, lpp, lim-lpp));
-			} else if (st == ParStat.cCR) {
-				content.write(buf, lpp, lim - lpp - 1);
-				heldCR = true;
+			int c = pc.parsBuf[pc.lastPP + k] & 255;
+			if (c == '\n') {
+				pc.lastPP += k + 1;
+				return close ? 0 : 1;
 			}
-			//else if( st == ParStat.cLF )
-				//content.write(buf, lpp, lim - lpp - 2);
-			if (st != ParStat.cEO)
-				lim = lpp = 0;
-			//if(p == lim)
-				//lim = lpp = 0;
-		} while (st != ParStat.cEO);
-		pc.lastPP = lpp;
-		pc.limitP = lim;
-		return st == ParStat.cEO;
+			if (!close && c != ' ' && c != '\t' && c != '\r')
+				return -1;
+		}
+	}
+
+	/**
+	 * makes at least the number of unprocessed bytes available in parsing
+	 * buffer, if the stream has them
+	 *
+	 * @return false if end of stream reached earlier
+	 */
+	static boolean fill(ParsingContext pc, InputStream mesStream, int need) throws IOException {
+		int avail = pc.limitP - pc.lastPP;
+		if (avail >= need)
+			return true;
+		if (pc.inPlace)
+			return false;
+		byte[] buf = pc.parsBuf;
+		if (need > buf.length)
+			buf = new byte[Math.max(need, buf.length * 2)];
+		System.arraycopy(pc.parsBuf, pc.lastPP, buf, 0, avail);
+		pc.parsBuf = buf;
+		pc.lastPP = 0;
+		pc.limitP = avail;
+		while (pc.limitP < need) {
+			int l = mesStream.read(buf, pc.limitP, buf.length - pc.limitP);
+			if (l <= 0)
+				return false;
+			pc.readCount += l;
+			pc.limitP += l;
+		}
+		return true;
 	}
 
 	public <T> T getHeader(String name, T defVal) {
-		name = name.toLowerCase();
-		Collection<String> values = headers.get(name);
-		if (values == null || values.size() == 0)
-			return defVal;
-		String value = values.iterator().next();
+		String value;
+		if (headers instanceof HeaderTable) {
+			value = ((HeaderTable) headers).getFirst(name);
+			if (value == null)
+				return defVal;
+		} else {
+			name = name.toLowerCase();
+			Collection<String> values = headers.get(name);
+			if (values == null || values.size() == 0)
+				return defVal;
+			value = values.iterator().next();
+		}
 		if (defVal instanceof Number) {
 			if (defVal instanceof Integer) {
 				return (T) new Integer(value);
@@ -508,19 +1004,74 @@ public class MIMEMessage {
 			} else if (defVal instanceof Double)
 				return (T) new Double(value);
 		} else if (defVal instanceof Date) {
-			try {
-				return (T) new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss Z", Locale.US).parse(value);
-			} catch (ParseException e) {
-				return defVal;
-			}
+			long time = DateParser.parse(value);
+			return time == DateParser.INVALID ? defVal : (T) new Date(time);
 		}
 		return (T) value;
 	}
 
+	/**
+	 * returns body decoded accordingly its content transfer encoding and
+	 * charset, a lazily parsed body gets decoded at first call
+	 *
+	 * @return
+	 */
 	public String getBodyDecoded() {
+		if (body == null && rawBody != null) {
+			try {
+				body = decodeBody();
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
 		return body;
 	}
 
+	/**
+	 * gives raw content of body as it is in a message, it is available when
+	 * the message was parsed lazily or the content was spilled to a file
+	 *
+	 * @return content stream or null
+	 */
+	public InputStream getContentStream() {
+		if (rawBody == null)
+			return null;
+		return new ByteBufferInputStream(rawBody.duplicate());
+	}
+
+	/**
+	 * gives body content with transfer encoding decoded, it is available when
+	 * the message was parsed lazily, with transfer decoding, or the content
+	 * was spilled to a file
+	 *
+	 * @return decoded content stream or null
+	 */
+	public InputStream getBodyStream() {
+		InputStream result = getContentStream();
+		if (result == null || transferDecoded)
+			return result;
+		return MIMEUtil.decodingStream(result, getHeader(CONTENT_TRANSFER_ENCODING, null));
+	}
+
+	/**
+	 * @return body content with transfer encoding decoded or null
+	 * @see #getBodyStream()
+	 */
+	public byte[] getBodyBytes() {
+		if (transferDecoded)
+			return rawBody == null ? null : toBytes(rawBody.duplicate());
+		InputStream in = getBodyStream();
+		if (in == null)
+			return null;
+		try {
+			ByteArrayOutputStream bos = new ByteArrayOutputStream(rawBody.remaining());
+			Stream.copyStream(in, bos);
+			return bos.toByteArray();
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
 	/**
 	 * returns a part with index marching specified content type
 	 * 
@@ -549,6 +1100,11 @@ public class MIMEMessage {
 	public static class Part extends MIMEMessage {
 		public boolean last;
 
+		/** section path of the part, like 1.2 */
+		public String section;
+
+		/** content was not selected, so the part has headers only */
+		public boolean skipped;
 	}
 
 	static public byte[] concat(byte[]... bufs) {
@@ -575,7 +1131,7 @@ public class MIMEMessage {
 		//	new String(concat("Hello".getBytes(), " ".getBytes(), "Dear ".getBytes(), "Friend".getBytes())));
 		try {
 			MIMEMessage m;
-			System.out.printf("Parsed %s as %n%s%n", args[0], m =parse(new FileInputStream(args[0])));
+			System.out.printf("Parsed %s as %n%s%n", args[0], m =parse(Paths.get(args[0])));
 			//System.out.printf("Subject %s\nDecoded:%s%n%s%n", m.getHeader("subject", ""), MIMEUtil.decodeText(m.getHeader("subject", "")),
 				//	DataConv.bytesToHex(MIMEUtil.decodeText(m.getHeader("subject", "")).getBytes("UTF-8")));
 		} catch (IOException e) {
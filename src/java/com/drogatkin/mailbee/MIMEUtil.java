@@ -3,12 +3,14 @@ package com.drogatkin.mailbee;
 import java.io.BufferedReader;
 import java.io.ByteArrayInputStream;
 import java.io.EOFException;
-import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
 import java.util.Arrays;
 import java.util.Base64;
 import java.util.HashMap;
@@ -33,15 +35,16 @@ public class MIMEUtil {
 
 	private static final boolean foldText = true;
 
+	private static volatile DecodeTextCache decodeCache;
+
 	/**
 	 * Decode "unstructured" headers, that is, headers that are defined as
 	 * '*text' as per RFC 822.
 	 * <p>
 	 *
 	 * The string is decoded using the algorithm specified in RFC 2047, Section
-	 * 6.1. If the charset-conversion fails for any sequence, an
-	 * UnsupportedEncodingException is thrown. If the String is not an RFC 2047
-	 * style encoded header, it is returned as-is
+	 * 6.1. An encoded word in unknown charset is left as is. If the String is
+	 * not an RFC 2047 style encoded header, it is returned as-is
 	 * <p>
 	 *
 	 * Example of usage:
@@ -75,174 +78,703 @@ public class MIMEUtil {
 	 */
 	public static String decodeText(String etext) throws UnsupportedEncodingException {
 		/*
-		 * We look for sequences separated by "linear-white-space".
-		 * (as per RFC 2047, Section 6.1)
-		 * RFC 822 defines "linear-white-space" as SPACE | HT | CR | NL.
-		 */
-		String lwsp = " \t\n\r";
-		StringTokenizer st;
-
-		/*
-		 * First, lets do a quick run thru the string and check
-		 * whether the sequence "=?"  exists at all. If none exists,
-		 * we know there are no encoded-words in here and we can just
-		 * return the string as-is, without suffering thru the later 
-		 * decoding logic. 
-		 * This handles the most common case of unencoded headers 
+		 * This handles the most common case of unencoded headers
 		 * efficiently.
 		 */
 		if (etext.indexOf("=?") == -1)
 			return etext;
+		DecodeTextCache cache = decodeCache;
+		if (cache != null)
+			return cache.decodeText(etext);
+		return decodeEncodedText(etext);
+	}
 
-		// Encoded words found. Start decoding ...
+	/**
+	 * sets cache used by {@link #decodeText(String)}
+	 *
+	 * @param cache
+	 *            cache or null to decode every time
+	 */
+	public static void setDecodeCache(DecodeTextCache cache) {
+		decodeCache = cache;
+	}
 
-		st = new StringTokenizer(etext, lwsp, true);
-		StringBuffer sb = new StringBuffer(); // decode buffer
-		StringBuffer wsb = new StringBuffer(); // white space buffer
-		Word prevEncoded = null;
+	public static DecodeTextCache getDecodeCache() {
+		return decodeCache;
+	}
 
-		while (st.hasMoreTokens()) {
-			char c;
-			String s = st.nextToken();
-			// If whitespace, append it to the whitespace buffer
-			if (((c = s.charAt(0)) == ' ') || (c == '\t') || (c == '\r') || (c == '\n'))
-				wsb.append(c);
-			else {
-				// Check if token is an 'encoded-word' ..
-				Word word;
-				try {
-					word = decodeWord(s);
-					if (prevEncoded != null) { 
-						// TODO if appended with same encoding
-						prevEncoded.append(word);
-						//prevEncoded.debug();
-					} else {
-						prevEncoded = word;
-						// Yes, this IS an 'encoded-word'.
-						if (wsb.length() > 0) {
-							// if the previous word was also encoded, we
-							// should ignore the collected whitespace. Else
-							// we include the whitespace as well.
-							sb.append(wsb);
-						}
+	/**
+	 * decodes a value having encoded words bypassing a cache
+	 */
+	static String decodeEncodedText(String etext) {
+		ParseEvents.DecodeText event = new ParseEvents.DecodeText();
+		event.begin();
+		String result = TextDecoder.get().decode(etext);
+		if (event.shouldCommit()) {
+			event.length = etext.length();
+			event.commit();
+		}
+		return result;
+	}
+
+	/**
+	 * Single pass decoder of encoded words, reused by a thread. Encoded words
+	 * are recognized without exceptions, decoded bytes of adjacent words in
+	 * same charset are collected in one buffer and become a string once, so a
+	 * character split between words is decoded right. White space between
+	 * encoded words is dropped as RFC 2047, Section 6.2 says.
+	 */
+	static final class TextDecoder {
+		static final ThreadLocal<TextDecoder> decoders = ThreadLocal.withInitial(TextDecoder::new);
+
+		/** buffer grown above is not kept */
+		static final int MAX_KEPT = 16 * 1024;
+
+		byte[] bytes = new byte[256];
+
+		int count;
+
+		Charset charset; // of collected bytes
+
+		// last looked up charset
+		Charset named;
+
+		String namedAs;
+
+		final StringBuilder sb = new StringBuilder(256);
+
+		// fields of the last scanned word
+		int charsetStart, charsetEnd, textStart, textEnd;
+
+		char encoding;
+
+		static TextDecoder get() {
+			return decoders.get();
+		}
+
+		String decode(String s) {
+			sb.setLength(0);
+			count = 0;
+			charset = null;
+			boolean lastEncoded = false;
+			int l = s.length();
+			int pos = 0;
+			while (pos < l) {
+				int ws = pos;
+				while (pos < l && isWhite(s.charAt(pos)))
+					pos++;
+				int token = pos;
+				while (pos < l && !isWhite(s.charAt(pos)))
+					pos++;
+				if (token == pos) { // trailing white space
+					flush();
+					sb.append(s, ws, pos);
+					break;
+				}
+				int p = token;
+				while (p < pos) {
+					int w = decodeStrict ? (p == token && s.startsWith("=?", p) ? p : -1) : s.indexOf("=?", p);
+					if (w >= pos)
+						w = -1;
+					int end = w < 0 ? -1 : scan(s, w, pos);
+					Charset cs = end < 0 ? null : charset(s);
+					if (cs == null) {
+						// plain text up to a next possible word
+						int pe = w < 0 || decodeStrict ? pos : w + 2;
+						flush();
+						if (p == token)
+							sb.append(s, ws, token);
+						sb.append(s, p, pe);
+						lastEncoded = false;
+						p = pe;
+						continue;
 					}
-				} catch (ProcessException pex) {
-					if (prevEncoded != null) {
-						sb.append(prevEncoded);
-						prevEncoded = null;
+					if (w > p) {
+						flush();
+						if (p == token)
+							sb.append(s, ws, token);
+						sb.append(s, p, w);
+						lastEncoded = false;
+					} else if (p == token && !lastEncoded)
+						sb.append(s, ws, token);
+					if (!cs.equals(charset)) {
+						flush();
+						charset = cs;
 					}
-					// This is NOT an 'encoded-word'.
-					// possibly decode inner encoded words
-					if (!decodeStrict) {
-						String dword = decodeInnerWords(s);
-						if (dword != s) {
-							// if a different String object was returned,
-							// decoding was done.
-							if (prevEncoded != null && s.startsWith("=?")) {
-								// encoded followed by encoded,
-								// throw away whitespace between
-							} else {
-								// include collected whitespace ..
-								if (wsb.length() > 0)
-									sb.append(wsb);
-							}
-							// did original end with encoded?
-							if ( s.endsWith("?=")) {
-								prevEncoded = new Word();
-							}
-							sb.append(dword);
-						} else {
-							// include collected whitespace ..
-							if (wsb.length() > 0)
-								sb.append(wsb);
-							prevEncoded = null;
-						}
-					} else {
-						// include collected whitespace ..
-						if (wsb.length() > 0)
-							sb.append(wsb);
-						prevEncoded = null;
+					if (encoding == 'B' || encoding == 'b')
+						decodeB(s, textStart, textEnd);
+					else
+						decodeQ(s, textStart, textEnd);
+					lastEncoded = true;
+					p = end;
+					if (decodeStrict && p < pos) {
+						// rest of the token goes as is
+						flush();
+						sb.append(s, p, pos);
+						lastEncoded = false;
+						p = pos;
 					}
 				}
-				//sb.append(word); // append the actual word
-				wsb.setLength(0); // reset wsb for reuse
 			}
+			flush();
+			if (bytes.length > MAX_KEPT)
+				bytes = new byte[256];
+			String result = sb.toString();
+			if (sb.length() > MAX_KEPT) {
+				sb.setLength(0);
+				sb.trimToSize();
+			}
+			return result;
+		}
+
+		/**
+		 * checks syntax of =?charset?encoding?text?= starting at the position
+		 *
+		 * @return position after the word or -1
+		 */
+		int scan(String s, int start, int limit) {
+			int cs = start + 2;
+			int ce = s.indexOf('?', cs);
+			if (ce <= cs || ce + 3 > limit || s.charAt(ce + 2) != '?')
+				return -1;
+			char e = s.charAt(ce + 1);
+			if (e != 'B' && e != 'b' && e != 'Q' && e != 'q')
+				return -1;
+			int te = s.indexOf("?=", ce + 3);
+			if (te < 0 || te + 2 > limit)
+				return -1;
+			charsetStart = cs;
+			charsetEnd = ce;
+			for (int i = cs; i < ce; i++)
+				if (s.charAt(i) == '*') { // RFC 2231 language
+					charsetEnd = i;
+					break;
+				}
+			encoding = e;
+			textStart = ce + 3;
+			textEnd = te;
+			return te + 2;
+		}
+
+		/**
+		 * @return charset of the scanned word or null if it is unknown
+		 */
+		Charset charset(String s) {
+			int len = charsetEnd - charsetStart;
+			if (named != null && namedAs.length() == len && s.regionMatches(true, charsetStart, namedAs, 0, len))
+				return named;
+			String name = s.substring(charsetStart, charsetEnd);
+			try {
+				named = Charsets.forName(name);
+				namedAs = name;
+				return named;
+			} catch (UnsupportedEncodingException e) {
+				return null;
+			}
+		}
+
+		void decodeB(String s, int from, int to) {
+			ensure((to - from) * 3 / 4 + 3);
+			int quantum = 0, bits = 0;
+			for (int i = from; i < to; i++) {
+				char c = s.charAt(i);
+				int v = c < 256 ? Base64DecoderOutputStream.DECODE[c] : -1;
+				if (v < 0) {
+					if (c == '=')
+						break;
+					continue;
+				}
+				quantum = quantum << 6 | v;
+				if (++bits == 4) {
+					bytes[count++] = (byte) (quantum >> 16);
+					bytes[count++] = (byte) (quantum >> 8);
+					bytes[count++] = (byte) quantum;
+					quantum = bits = 0;
+				}
+			}
+			if (bits == 2)
+				bytes[count++] = (byte) (quantum >> 4);
+			else if (bits == 3) {
+				bytes[count++] = (byte) (quantum >> 10);
+				bytes[count++] = (byte) (quantum >> 2);
+			}
+		}
+
+		void decodeQ(String s, int from, int to) {
+			ensure(to - from);
+			for (int i = from, v; i < to; i++) {
+				char c = s.charAt(i);
+				if (c == '_')
+					bytes[count++] = ' ';
+				else if (c == '=' && (v = hex(s, i + 1, to)) >= 0) {
+					bytes[count++] = (byte) v;
+					i += 2;
+				} else
+					bytes[count++] = (byte) c;
+			}
+		}
+
+		static int hex(String s, int i, int to) {
+			if (i + 1 >= to)
+				return -1;
+			char h = s.charAt(i), l = s.charAt(i + 1);
+			if (h > 255 || l > 255)
+				return -1;
+			int hv = QuotedPrintable.HEX_DECODE[h], lv = QuotedPrintable.HEX_DECODE[l];
+			return hv < 0 || lv < 0 ? -1 : hv << 4 | lv;
+		}
+
+		void ensure(int more) {
+			if (count + more > bytes.length)
+				bytes = Arrays.copyOf(bytes, Math.max(count + more, bytes.length * 2));
+		}
+
+		void flush() {
+			if (count > 0)
+				sb.append(Charsets.decode(bytes, 0, count, charset));
+			count = 0;
+		}
+	}
+
+	/**
+	 * Encodes words of a header value containing non US-ASCII characters as
+	 * RFC 2047 encoded words in UTF-8, adjacent such words make one encoded
+	 * text. Q encoding is used when the text is mostly ASCII, otherwise B.
+	 *
+	 * @param text
+	 *            unstructured header value or a phrase
+	 * @return value safe to put in a header
+	 */
+	public static String encodeText(String text) {
+		if (checkAscii(text) == ALL_ASCII)
+			return text;
+		StringBuilder sb = new StringBuilder(text.length() * 2);
+		int l = text.length();
+		int i = 0;
+		while (i < l) {
+			int ws = i;
+			while (i < l && isWhite(text.charAt(i)))
+				i++;
+			int start = i;
+			while (i < l && !isWhite(text.charAt(i)))
+				i++;
+			if (checkAscii(text.substring(start, i)) == ALL_ASCII) {
+				sb.append(text, ws, i);
+				continue;
+			}
+			sb.append(text, ws, start);
+			// take following non ASCII words too
+			int end = i;
+			for (;;) {
+				while (i < l && isWhite(text.charAt(i)))
+					i++;
+				int ns = i;
+				while (i < l && !isWhite(text.charAt(i)))
+					i++;
+				if (ns == i || checkAscii(text.substring(ns, i)) == ALL_ASCII) {
+					i = end;
+					break;
+				}
+				end = i;
+			}
+			encodeWords(sb, text.substring(start, end));
 		}
-		if (prevEncoded != null)
-			sb.append(prevEncoded);
-		sb.append(wsb); // append trailing whitespace
 		return sb.toString();
 	}
 
-	static class QDecoderStream extends FilterInputStream {
-		byte[] buf = new byte[2];
+	private static boolean isWhite(char c) {
+		return c == ' ' || c == '\t' || c == '\r' || c == '\n';
+	}
 
-		protected QDecoderStream(InputStream ins) {
-			super(ins);
+	/**
+	 * appends encoded words not longer than 75 characters each, a character
+	 * is never split between words
+	 */
+	static void encodeWords(StringBuilder sb, String text) {
+		boolean b = checkAscii(text) != MOSTLY_ASCII;
+		String prefix = b ? "=?UTF-8?B?" : "=?UTF-8?Q?";
+		int room = 75 - prefix.length() - 2;
+		byte[] chunk = new byte[room];
+		int cl = 0, el = 0; // chunk bytes and their encoded length
+		boolean first = true;
+		for (int i = 0, l = text.length(); i < l;) {
+			int cp = text.codePointAt(i);
+			int n = Character.charCount(cp);
+			byte[] cb = text.substring(i, i + n).getBytes(java.nio.charset.StandardCharsets.UTF_8);
+			int ce = 0;
+			if (b)
+				ce = (cl + cb.length + 2) / 3 * 4 - el;
+			else
+				for (byte x : cb)
+					ce += x == ' ' || QuotedPrintable.Encoder.safeQ(x & 255) ? 1 : 3;
+			if (el + ce > room && cl > 0) {
+				appendWord(sb, prefix, chunk, cl, b, first);
+				first = false;
+				cl = el = 0;
+				continue;
+			}
+			System.arraycopy(cb, 0, chunk, cl, cb.length);
+			cl += cb.length;
+			el += ce;
+			i += n;
 		}
+		if (cl > 0)
+			appendWord(sb, prefix, chunk, cl, b, first);
+	}
 
-		@Override
-		public int read(byte[] buf, int pos, int len) throws IOException {
-			if (pos+len > buf.length)
-				throw new IllegalArgumentException("Buffer size "+buf.length+" isn't sufficient to accomodate "+len+" from "+pos);
-			for (int i = 0; i < len; i++) {
-				int c = read();
-				if (c < 0)
-					return i;
-				buf[pos + i] = (byte) (c & 255);
+	private static void appendWord(StringBuilder sb, String prefix, byte[] chunk, int len, boolean b, boolean first) {
+		if (!first)
+			sb.append(' ');
+		sb.append(prefix);
+		if (b)
+			sb.append(Base64.getEncoder().encodeToString(Arrays.copyOf(chunk, len)));
+		else {
+			QuotedPrintable.Encoder e = new QuotedPrintable.Encoder(true, true);
+			byte[] dst = new byte[QuotedPrintable.Encoder.maxEncodedLength(len)];
+			int el = e.encode(chunk, 0, len, dst, 0);
+			el += e.finish(dst, el);
+			for (int i = 0; i < el; i++)
+				sb.append((char) dst[i]);
+		}
+		sb.append("?=");
+	}
+
+	/**
+	 * Encodes display names of an address list header, like From or To, which
+	 * contain non US-ASCII characters. Addresses, comments and delimiters are
+	 * kept as is, since RFC 2047 allows encoded words in a phrase only.
+	 *
+	 * @param value
+	 *            address list
+	 * @return value safe to put in a header, addresses with non US-ASCII
+	 *         characters are left for SMTPUTF8
+	 */
+	public static String encodeAddresses(String value) {
+		if (checkAscii(value) == ALL_ASCII)
+			return value;
+		StringBuilder sb = new StringBuilder(value.length() * 2);
+		int start = 0; // start of not written text
+		boolean angle = false;
+		for (int i = 0, l = value.length(); i < l; i++) {
+			char c = value.charAt(i);
+			if (c == '"')
+				i = skipQuoted(value, i);
+			else if (c == '(')
+				i = skipComment(value, i);
+			else if (angle) {
+				if (c == '>')
+					angle = false;
+			} else if (c == '<' || c == ':') {
+				// display name of a mailbox or a group
+				encodePhrase(sb, value.substring(start, i));
+				sb.append(c);
+				start = i + 1;
+				angle = c == '<';
+			} else if (c == ',' || c == ';') {
+				sb.append(value, start, i + 1);
+				start = i + 1;
 			}
-			return len;
+		}
+		sb.append(value, start, value.length());
+		return sb.toString();
+	}
+
+	static void encodePhrase(StringBuilder sb, String phrase) {
+		if (checkAscii(phrase) == ALL_ASCII) {
+			sb.append(phrase);
+			return;
+		}
+		int s = 0, e = phrase.length();
+		while (s < e && isWhite(phrase.charAt(s)))
+			s++;
+		while (e > s && isWhite(phrase.charAt(e - 1)))
+			e--;
+		sb.append(phrase, 0, s);
+		// encoded words can't be in a quoted string, so quotes are removed
+		StringBuilder text = new StringBuilder(e - s);
+		boolean special = false;
+		for (int i = s; i < e; i++) {
+			char c = phrase.charAt(i);
+			if (c == '"')
+				continue;
+			if (c == '\\' && i + 1 < e)
+				c = phrase.charAt(++i);
+			special |= c < 128 && "()<>@,;:\\\".[]".indexOf(c) >= 0;
+			text.append(c);
+		}
+		// ASCII words with specials can't go unquoted next to encoded ones
+		if (special)
+			encodeWords(sb, text.toString());
+		else
+			sb.append(encodeText(text.toString()));
+		sb.append(phrase, e, phrase.length());
+	}
+
+	private static int skipQuoted(String s, int i) {
+		for (i++; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (c == '\\')
+				i++;
+			else if (c == '"')
+				break;
+		}
+		return i;
+	}
+
+	private static int skipComment(String s, int i) {
+		int depth = 0;
+		for (; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (c == '\\')
+				i++;
+			else if (c == '(')
+				depth++;
+			else if (c == ')' && --depth == 0)
+				break;
+		}
+		return i;
+	}
+
+	/**
+	 * Encodes parameters of a header like Content-Type or Content-Disposition
+	 * containing non US-ASCII characters as RFC 2231 name*=utf-8''value, a
+	 * long value is split in continuations. Other parameters are kept as is.
+	 *
+	 * @param value
+	 *            header value with parameters
+	 * @return value safe to put in a header
+	 */
+	public static String encodeParameters(String value) {
+		if (checkAscii(value) == ALL_ASCII)
+			return value;
+		StringBuilder sb = new StringBuilder(value.length() * 3);
+		int start = 0;
+		for (int i = 0, l = value.length(); i <= l; i++) {
+			if (i < l) {
+				char c = value.charAt(i);
+				if (c == '"')
+					i = skipQuoted(value, i);
+				if (c != ';')
+					continue;
+			}
+			String param = value.substring(start, Math.min(i, l));
+			int eq = param.indexOf('=');
+			if (start == 0 || eq < 0 || checkAscii(param) == ALL_ASCII)
+				sb.append(param);
+			else
+				encodeParameter(sb, param.substring(0, eq), param.substring(eq + 1));
+			if (i < l)
+				sb.append(';');
+			start = i + 1;
+		}
+		return sb.toString();
+	}
+
+	static final int PARAMETER_CHUNK = 60;
+
+	static void encodeParameter(StringBuilder sb, String name, String value) {
+		int s = 0;
+		while (s < name.length() && isWhite(name.charAt(s)))
+			s++;
+		String lead = name.substring(0, s);
+		name = name.trim();
+		if (name.endsWith("*")) { // already in RFC 2231 form
+			sb.append(lead).append(name).append('=').append(value);
+			return;
+		}
+		value = value.trim();
+		if (value.startsWith("\"")) {
+			StringBuilder v = new StringBuilder(value.length());
+			for (int i = 1, e = value.endsWith("\"") && value.length() > 1 ? value.length() - 1 : value.length(); i < e; i++) {
+				char c = value.charAt(i);
+				if (c == '\\' && i + 1 < e)
+					c = value.charAt(++i);
+				v.append(c);
+			}
+			value = v.toString();
+		}
+		StringBuilder encoded = new StringBuilder("utf-8''");
+		for (byte b : value.getBytes(java.nio.charset.StandardCharsets.UTF_8)) {
+			int c = b & 255;
+			if (c > 32 && c < 127 && "*'%()<>@,;:\\\"/[]?=".indexOf(c) < 0)
+				encoded.append((char) c);
+			else
+				encoded.append('%').append(HEX.charAt(c >> 4)).append(HEX.charAt(c & 15));
+		}
+		if (encoded.length() <= PARAMETER_CHUNK) {
+			sb.append(lead).append(name).append("*=").append(encoded);
+			return;
+		}
+		for (int n = 0, i = 0; i < encoded.length(); n++) {
+			int e = Math.min(i + PARAMETER_CHUNK, encoded.length());
+			// an escape isn't split
+			if (e < encoded.length() && encoded.charAt(e - 1) == '%')
+				e--;
+			else if (e < encoded.length() && encoded.charAt(e - 2) == '%')
+				e -= 2;
+			if (n > 0)
+				sb.append(';');
+			sb.append(n > 0 ? " " : lead).append(name).append('*').append(n).append("*=")
+					.append(encoded, i, e);
+			i = e;
+		}
+	}
+
+	static final String HEX = "0123456789ABCDEF";
+
+	/**
+	 * Gives a stream encoding data written to it in content transfer encoding
+	 *
+	 * @param sink
+	 * @param transferEncoding
+	 *            base64 or quoted-printable, other encodings pass data as is
+	 * @return encoding stream, closing it completes encoding and closes the
+	 *         sink
+	 */
+	public static OutputStream encodingStream(OutputStream sink, String transferEncoding) {
+		if (transferEncoding == null)
+			return sink;
+		transferEncoding = transferEncoding.trim();
+		if ("base64".equalsIgnoreCase(transferEncoding))
+			return Base64.getMimeEncoder().wrap(sink);
+		if ("quoted-printable".equalsIgnoreCase(transferEncoding))
+			return new QuotedPrintable.EncoderOutputStream(sink, false);
+		return sink;
+	}
+
+	/**
+	 * Gives a stream decoding content transfer encoding of data written to it,
+	 * decoded bytes go to the sink
+	 *
+	 * @param sink
+	 * @param transferEncoding
+	 *            value of Content-Transfer-Encoding, 7bit, 8bit, binary and
+	 *            unknown encodings pass data as is
+	 * @return decoding stream, closing it closes the sink
+	 */
+	public static OutputStream decodingStream(OutputStream sink, String transferEncoding) {
+		if (transferEncoding == null)
+			return sink;
+		transferEncoding = transferEncoding.trim();
+		if ("base64".equalsIgnoreCase(transferEncoding))
+			return new Base64DecoderOutputStream(sink);
+		if ("quoted-printable".equalsIgnoreCase(transferEncoding))
+			return new QuotedPrintable.DecoderOutputStream(sink, false);
+		return sink;
+	}
+
+	/**
+	 * Gives a stream decoding content transfer encoding of the stream
+	 *
+	 * @param in
+	 * @param transferEncoding
+	 *            value of Content-Transfer-Encoding
+	 * @return decoded stream
+	 */
+	public static InputStream decodingStream(InputStream in, String transferEncoding) {
+		if (transferEncoding == null)
+			return in;
+		transferEncoding = transferEncoding.trim();
+		if ("base64".equalsIgnoreCase(transferEncoding))
+			return Base64.getMimeDecoder().wrap(in);
+		if ("quoted-printable".equalsIgnoreCase(transferEncoding))
+			return new QuotedPrintable.DecoderInputStream(in, false);
+		return in;
+	}
+
+	static class Base64DecoderOutputStream extends FilterOutputStream {
+		static final byte[] DECODE = new byte[256];
+
+		static {
+			Arrays.fill(DECODE, (byte) -1);
+			String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+			for (int i = 0; i < alphabet.length(); i++)
+				DECODE[alphabet.charAt(i)] = (byte) i;
+		}
+
+		byte[] ob = new byte[3 * 1024];
+		int quantum, bits;
+		boolean padded;
+
+		Base64DecoderOutputStream(OutputStream sink) {
+			super(sink);
 		}
 
 		@Override
-		public int read(byte[] buf) throws IOException {
-			return read(buf, 0, buf.length);
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
 		}
 
-		public int read() throws IOException {
-			do {
-				int c = in.read(); //System.out.print((char)c);
-				if (c == '_') // Return '_' as ' '
-					return ' ';
-				else if (c == '=') {
-					// QP Encoded atom. Get the next two bytes ..
-					c = in.read();
-					if (c == -1)
-						return -1;
-					buf[0] = (byte) c;
-					c = in.read();
-					if (c == -1)
-						return c;
-					buf[1] = (byte) c;
-					// .. and decode them
-					if ((buf[0] & 255) == '\r' && (buf[1] & 255) == '\n')
-						continue;
-					try {
-						return Integer.parseInt(new String(buf, "ASCII"), 16);
-					} catch (NumberFormatException nex) {
-						throw new IOException(
-								"QDecoder: Error in QP stream :" + nex.getMessage() +" :"+ buf[0] + "/" + buf[1]);
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			int op = 0;
+			for (int i = off, e = off + len; i < e; i++) {
+				int v = DECODE[b[i] & 255];
+				if (v < 0) { // line breaks and garbage are skipped
+					if (b[i] == '=')
+						padded = true;
+					continue;
+				}
+				if (padded) // data after padding starts next encoded unit
+					op = flushQuantum(op);
+				quantum = quantum << 6 | v;
+				if (++bits == 4) {
+					if (op + 3 > ob.length) {
+						out.write(ob, 0, op);
+						op = 0;
 					}
-				} else
-					return c;
-			} while (true);
+					ob[op++] = (byte) (quantum >> 16);
+					ob[op++] = (byte) (quantum >> 8);
+					ob[op++] = (byte) quantum;
+					quantum = bits = 0;
+				}
+			}
+			if (op > 0)
+				out.write(ob, 0, op);
+		}
+
+		/**
+		 * puts bytes of an incomplete unit after decoded ones, so output keeps
+		 * order
+		 *
+		 * @return new number of decoded bytes in output buffer
+		 */
+		int flushQuantum(int op) throws IOException {
+			if (op + 2 > ob.length) {
+				out.write(ob, 0, op);
+				op = 0;
+			}
+			// 2 chars give 1 byte, 3 chars give 2 bytes
+			if (bits == 2)
+				ob[op++] = (byte) (quantum >> 4);
+			else if (bits == 3) {
+				ob[op++] = (byte) (quantum >> 10);
+				ob[op++] = (byte) (quantum >> 2);
+			}
+			quantum = bits = 0;
+			padded = false;
+			return op;
 		}
 
+		@Override
+		public void write(byte[] b) throws IOException {
+			write(b, 0, b.length);
+		}
+
+		@Override
+		public void close() throws IOException {
+			int op = flushQuantum(0);
+			if (op > 0)
+				out.write(ob, 0, op);
+			super.close();
+		}
 	}
-	
+
 	static class Word {
 		byte[] word;
-		String charset;
+		Charset charset;
 		
-		Word append(Word w) {
-			if (word == null)
-				word = w.word;
-			else if (w.word != null && w.word.length > 0)
-				append(w.word);
-			return this;	
-		}
-		
-		Word append(String s) throws UnsupportedEncodingException {
+		Word append(String s) {
 			if (s.length() > 0)
 				append(s.getBytes(charset));
 			return this;
@@ -255,11 +787,7 @@ public class MIMEUtil {
 		
 		@Override
 		public String toString() {
-			try {
-				return word==null?"":new String(word, charset);
-			} catch (UnsupportedEncodingException e) {
-				return e.toString();
-			}
+			return word == null ? "" : Charsets.decode(word, charset);
 		}
 		
 		void debug(String mark) {
@@ -298,7 +826,7 @@ public class MIMEUtil {
 		int lpos = charset.indexOf('*'); // RFC 2231 language specified?
 		if (lpos >= 0) // yes, throw it away
 			charset = charset.substring(0, lpos);
-		charset = javaCharset(charset);
+		Charset cs = Charsets.forName(charset);
 
 		// get encoding
 		start = pos + 1;
@@ -321,34 +849,37 @@ public class MIMEUtil {
 
 		try {
 			Word decodedWord = new Word();
-			decodedWord.charset = charset;
+			decodedWord.charset = cs;
 			if (word.length() > 0) {
 				// Extract the bytes from word
-				ByteArrayInputStream bis = new ByteArrayInputStream(word.getBytes("ASCII"));
-
-				// Get the appropriate decoder
-				InputStream is;
-				if (encoding.equalsIgnoreCase("B"))
-					is = Base64.getMimeDecoder().wrap(bis);
-				else if (encoding.equalsIgnoreCase("Q"))
-					is = new QDecoderStream(bis);
-				else
-					throw new UnsupportedEncodingException("unknown encoding: " + encoding);
-
-				// For b64 & q, size of decoded word <= size of word. So
-				// the decoded bytes must fit into the 'bytes' array. This
-				// is certainly more efficient than writing bytes into a
-				// ByteArrayOutputStream and then pulling out the byte[]
-				// from it.
-				int count = bis.available();
-				byte[] bytes = new byte[count];
-				// count is set to the actual number of decoded bytes 
-				count = is.read(bytes, 0, count);
-
-				// Finally, convert the decoded bytes into a String using
-				// the specified charset
-				//System.out.printf("Bytes: %s%n", DataConv.bytesToHex(bytes));
-				decodedWord.word = count <= 0 ? new byte[0] : Arrays.copyOf(bytes, count);
+				byte[] wb = word.getBytes("ASCII");
+				if (encoding.equalsIgnoreCase("Q"))
+					decodedWord.word = QuotedPrintable.decode(wb, 0, wb.length, true);
+				else {
+					ByteArrayInputStream bis = new ByteArrayInputStream(wb);
+
+					// Get the appropriate decoder
+					InputStream is;
+					if (encoding.equalsIgnoreCase("B"))
+						is = Base64.getMimeDecoder().wrap(bis);
+					else
+						throw new UnsupportedEncodingException("unknown encoding: " + encoding);
+
+					// For b64, size of decoded word <= size of word. So
+					// the decoded bytes must fit into the 'bytes' array. This
+					// is certainly more efficient than writing bytes into a
+					// ByteArrayOutputStream and then pulling out the byte[]
+					// from it.
+					int count = bis.available();
+					byte[] bytes = new byte[count];
+					// count is set to the actual number of decoded bytes 
+					count = is.read(bytes, 0, count);
+
+					// Finally, convert the decoded bytes into a String using
+					// the specified charset
+					//System.out.printf("Bytes: %s%n", DataConv.bytesToHex(bytes));
+					decodedWord.word = count <= 0 ? new byte[0] : Arrays.copyOf(bytes, count);
+				}
 			} else {
 				// no characters to decode, return empty string
 				decodedWord.word = new byte[0];
@@ -1027,6 +1558,68 @@ public class MIMEUtil {
 		return MOSTLY_NONASCII;
 	}
 
+	/**
+	 * Chooses content transfer encoding for data: 7bit for ASCII, text
+	 * mostly in ASCII gets quoted-printable, anything else base64
+	 *
+	 * @param text
+	 *            data are text of text/* content
+	 * @return name of encoding
+	 */
+	static String chooseEncoding(byte[] b, int off, int len, boolean text) {
+		AsciiOutputStream aos = new AsciiOutputStream(!text, encodeEolStrict);
+		try {
+			aos.write(b, off, len);
+		} catch (IOException e) {
+			// non ASCII found
+		}
+		return chooseEncoding(aos, text, false);
+	}
+
+	/**
+	 * Chooses content transfer encoding for data of a buffer, a buffer without
+	 * array is scanned in chunks, so content isn't copied whole
+	 *
+	 * @param text
+	 *            data are text of text/* content
+	 * @param eightBit
+	 *            text can stay 8bit when lines fit in 998 bytes and there is
+	 *            no NUL
+	 * @return name of encoding
+	 */
+	static String chooseEncoding(ByteBuffer buf, boolean text, boolean eightBit) {
+		AsciiOutputStream aos = new AsciiOutputStream(!text, encodeEolStrict);
+		try {
+			if (buf.hasArray())
+				aos.write(buf.array(), buf.arrayOffset() + buf.position(), buf.remaining());
+			else {
+				buf = buf.duplicate();
+				byte[] chunk = new byte[Math.min(8 * 1024, buf.remaining())];
+				while (buf.hasRemaining()) {
+					int l = Math.min(chunk.length, buf.remaining());
+					buf.get(chunk, 0, l);
+					aos.write(chunk, 0, l);
+				}
+			}
+		} catch (IOException e) {
+			// non ASCII found
+		}
+		return chooseEncoding(aos, text, eightBit);
+	}
+
+	private static String chooseEncoding(AsciiOutputStream aos, boolean text, boolean eightBit) {
+		switch (aos.getAscii()) {
+		case ALL_ASCII:
+			return "7bit";
+		case MOSTLY_ASCII:
+			if (text && eightBit && aos.fitsEightBit())
+				return "8bit";
+			return text ? "quoted-printable" : "base64";
+		default:
+			return "base64";
+		}
+	}
+
 	static final boolean nonascii(int b) {
 		return b >= 0177 || (b < 040 && b != '\r' && b != '\n' && b != '\t');
 	}
@@ -1045,6 +1638,7 @@ class AsciiOutputStream extends OutputStream {
 	private boolean checkEOL = false;
 	private int lastb = 0;
 	private int ret = 0;
+	private boolean nul = false;
 
 	public AsciiOutputStream(boolean breakOnNonAscii, boolean encodeEolStrict) {
 		this.breakOnNonAscii = breakOnNonAscii;
@@ -1076,6 +1670,8 @@ class AsciiOutputStream extends OutputStream {
 			if (linelen > 998) // 1000 - CRLF
 				longLine = true;
 		}
+		if (b == 0)
+			nul = true;
 		if (MIMEUtil.nonascii(b)) { // non-ascii
 			non_ascii++;
 			if (breakOnNonAscii) { // we are done
@@ -1087,6 +1683,14 @@ class AsciiOutputStream extends OutputStream {
 		lastb = b;
 	}
 
+	/**
+	 * Tells that data can go as 8bit, lines are not too long and there is no
+	 * NUL.
+	 */
+	public boolean fitsEightBit() {
+		return !longLine && !nul;
+	}
+
 	/**
 	 * Return ASCII-ness of data stream.
 	 */
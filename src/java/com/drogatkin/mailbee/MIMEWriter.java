@@ -0,0 +1,291 @@
+package com.drogatkin.mailbee;
+
+import java.io.BufferedOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Writes a message to a stream part by part, so a whole message is never built
+ * in memory. Header values get folded, non US-ASCII text of unstructured
+ * headers and display names of addresses go as RFC 2047 encoded words,
+ * parameters of Content-Type and Content-Disposition as RFC 2231 ones, other
+ * structured values are written as they are. Content keeping own transfer
+ * encoding, as a lazily parsed one, is copied as is, otherwise content
+ * transfer encoding is chosen by content: 7bit, quoted-printable or base64,
+ * text declared as 8bit stays 8bit while its lines fit. Content is encoded
+ * from its buffer in chunks.
+ * <p>
+ * Output is canonical rather than a byte copy of a parsed message: headers
+ * and multipart delimiters end with CRLF, quoted-printable text gets CRLF line
+ * breaks, so bare LF of an input comes back as CRLF there, and a transfer
+ * encoding of decoded content can differ from the original one.
+ */
+public class MIMEWriter {
+	static final byte[] CRLF = { '\r', '\n' };
+
+	static final int CHUNK = 8 * 1024;
+
+	/** headers of free text, where encoded words can be anywhere */
+	static final Set<String> UNSTRUCTURED = new HashSet<>(Arrays.asList(MIMEMessage.SUBJECT, "comments",
+			"content-description", "thread-topic"));
+
+	/** headers of address lists, encoded words can be in display names */
+	static final Set<String> ADDRESSES = new HashSet<>(Arrays.asList(MIMEMessage.FROM, MIMEMessage.TO, "cc", "bcc",
+			"reply-to", "sender", "resent-from", "resent-to", "resent-cc", "resent-bcc", "resent-sender",
+			"disposition-notification-to", "mail-followup-to", "mail-reply-to"));
+
+	protected OutputStream out;
+
+	public MIMEWriter(OutputStream out) {
+		this.out = new BufferedOutputStream(out, CHUNK);
+	}
+
+	public MIMEWriter(WritableByteChannel channel) {
+		this(Channels.newOutputStream(channel));
+	}
+
+	/**
+	 * writes the message and flushes the stream, the stream is left open
+	 */
+	public void write(MIMEMessage message) throws IOException {
+		writePart(message);
+		out.flush();
+	}
+
+	protected void writePart(MIMEMessage part) throws IOException {
+		if (part.parts != null && (!part.parts.isEmpty() || MIMEMessage.MessageBuilder.isMultipart(part))) {
+			writeMultipart(part);
+			return;
+		}
+		String contentType = part.getHeader(MIMEMessage.CONTENT_TYPE, "");
+		boolean text = MIMEMessage.isText(contentType);
+		if (part.rawBody != null && !part.transferDecoded) {
+			// original transfer encoding is kept
+			writeHeaders(part.headers, null, null);
+			writeBuffer(part.rawBody.duplicate(), out);
+			return;
+		}
+		ByteBuffer content = content(part, contentType, text);
+		String encoding = MIMEUtil.chooseEncoding(content, text,
+				"8bit".equalsIgnoreCase(part.getHeader(MIMEMessage.CONTENT_TRANSFER_ENCODING, "").trim()));
+		String newType = null;
+		if (contentType.trim().regionMatches(true, 0, "message/", 0, 8)) {
+			// RFC 2046 allows no encoding of a message, 8 bit goes as is
+			if (!"7bit".equals(encoding))
+				encoding = "8bit";
+		} else if (text && !"7bit".equals(encoding) && contentType.toLowerCase().indexOf("charset=") < 0)
+			newType = contentType.trim().isEmpty() ? "text/plain; charset=utf-8" : contentType + "; charset=utf-8";
+		writeHeaders(part.headers, newType, encoding);
+		OutputStream os = MIMEUtil.encodingStream(new Unclosable(out), encoding);
+		writeBuffer(content, os);
+		os.close();
+	}
+
+	protected void writeMultipart(MIMEMessage part) throws IOException {
+		String contentType = part.getHeader(MIMEMessage.CONTENT_TYPE, "");
+		String boundary = MIMEMessage.getBoundary(contentType);
+		String newType = null;
+		if (boundary == null || contentType.toLowerCase().indexOf("multipart/") < 0) {
+			boundary = newBoundary();
+			newType = (contentType.toLowerCase().indexOf("multipart/") < 0 ? "multipart/mixed" : contentType)
+					+ "; boundary=\"" + boundary + '"';
+		}
+		writeHeaders(part.headers, newType, null);
+		byte[] delimiter = ("--" + boundary).getBytes(StandardCharsets.ISO_8859_1);
+		// a parsed preamble is decoded in the default charset
+		ByteBuffer preamble = part.rawBody != null ? part.rawBody.duplicate()
+				: part.body != null ? ByteBuffer.wrap(part.body.getBytes(Charset.defaultCharset())) : null;
+		boolean first = preamble == null || !preamble.hasRemaining();
+		if (!first)
+			writeBuffer(preamble, out);
+		for (MIMEMessage.Part p : part.parts) {
+			if (!first)
+				out.write(CRLF);
+			first = false;
+			out.write(delimiter);
+			out.write(CRLF);
+			writePart(p);
+		}
+		out.write(CRLF);
+		out.write(delimiter);
+		out.write('-');
+		out.write('-');
+		out.write(CRLF);
+	}
+
+	/**
+	 * writes headers and a blank line after them
+	 *
+	 * @param contentType
+	 *            replaces content type when not null
+	 * @param encoding
+	 *            replaces content transfer encoding when not null
+	 */
+	protected void writeHeaders(Map<String, Collection<String>> headers, String contentType, String encoding)
+			throws IOException {
+		boolean typeDone = false, encodingDone = false;
+		if (headers instanceof HeaderTable) {
+			HeaderTable table = (HeaderTable) headers;
+			for (int i = 0, n = table.count(); i < n; i++) {
+				String name = table.getName(i);
+				String value = table.getValue(i);
+				if (contentType != null && MIMEMessage.CONTENT_TYPE.equalsIgnoreCase(name)) {
+					if (typeDone)
+						continue;
+					value = contentType;
+					typeDone = true;
+				} else if (encoding != null && MIMEMessage.CONTENT_TRANSFER_ENCODING.equalsIgnoreCase(name)) {
+					if (encodingDone)
+						continue;
+					value = encoding;
+					encodingDone = true;
+				}
+				writeHeader(name, value);
+			}
+		} else if (headers != null) {
+			for (Map.Entry<String, Collection<String>> e : headers.entrySet()) {
+				String name = e.getKey();
+				Collection<String> values = e.getValue();
+				if (contentType != null && MIMEMessage.CONTENT_TYPE.equalsIgnoreCase(name)) {
+					values = Collections.singletonList(contentType);
+					typeDone = true;
+				} else if (encoding != null && MIMEMessage.CONTENT_TRANSFER_ENCODING.equalsIgnoreCase(name)) {
+					values = Collections.singletonList(encoding);
+					encodingDone = true;
+				}
+				for (String value : values)
+					writeHeader(name, value);
+			}
+		}
+		if (contentType != null && !typeDone)
+			writeHeader(MIMEMessage.CONTENT_TYPE, contentType);
+		if (encoding != null && !encodingDone && !"7bit".equals(encoding))
+			writeHeader(MIMEMessage.CONTENT_TRANSFER_ENCODING, encoding);
+		out.write(CRLF);
+	}
+
+	protected void writeHeader(String name, String value) throws IOException {
+		name = headerName(name);
+		String line = name + ": "
+				+ MIMEUtil.fold(name.length() + 2, encodeValue(name, value == null ? "" : value.trim()));
+		// encoded text is ASCII, a raw value may keep 8 bit of a non conforming
+		// message
+		out.write(line.getBytes(StandardCharsets.ISO_8859_1));
+		out.write(CRLF);
+	}
+
+	/**
+	 * encodes non US-ASCII characters of a value as the header allows
+	 */
+	static String encodeValue(String name, String value) {
+		String lname = name.toLowerCase(Locale.ENGLISH);
+		if (UNSTRUCTURED.contains(lname) || lname.startsWith("x-"))
+			return MIMEUtil.encodeText(value);
+		if (ADDRESSES.contains(lname))
+			return MIMEUtil.encodeAddresses(value);
+		if (MIMEMessage.CONTENT_TYPE.equals(lname) || MIMEMessage.CONTENT_DISPOSITION.equals(lname))
+			return MIMEUtil.encodeParameters(value);
+		return value;
+	}
+
+	/**
+	 * gives a conventional form of a header name, like Content-Type
+	 */
+	static String headerName(String name) {
+		if (MIMEMessage.MESSAGE_ID.equalsIgnoreCase(name))
+			return "Message-ID";
+		if ("mime-version".equalsIgnoreCase(name))
+			return "MIME-Version";
+		if ("content-id".equalsIgnoreCase(name))
+			return "Content-ID";
+		char[] cs = name.toCharArray();
+		boolean up = true;
+		for (int i = 0; i < cs.length; i++) {
+			cs[i] = up ? Character.toUpperCase(cs[i]) : Character.toLowerCase(cs[i]);
+			up = cs[i] == '-';
+		}
+		return new String(cs);
+	}
+
+	/**
+	 * content of a part without transfer encoding, raw content is given as is
+	 */
+	static ByteBuffer content(MIMEMessage part, String contentType, boolean text) {
+		if (part.rawBody != null)
+			return part.rawBody.duplicate();
+		String body = part.body;
+		if (body == null)
+			return ByteBuffer.allocate(0);
+		String charset = MIMEMessage.charsetParameter(contentType);
+		if ("binary".equalsIgnoreCase(charset) || !text
+				&& "base64".equalsIgnoreCase(part.getHeader(MIMEMessage.CONTENT_TRANSFER_ENCODING, "").trim())) {
+			// binary content is kept in base64 as in decodeBody
+			try {
+				return ByteBuffer.wrap(Base64.getMimeDecoder().decode(body));
+			} catch (IllegalArgumentException e) {
+				return ByteBuffer.wrap(body.getBytes(StandardCharsets.ISO_8859_1));
+			}
+		}
+		if (charset == null) // charset=utf-8 is added for non ASCII
+			return ByteBuffer.wrap(body.getBytes(StandardCharsets.UTF_8));
+		try {
+			return ByteBuffer.wrap(body.getBytes(Charsets.forName(charset)));
+		} catch (UnsupportedEncodingException e) {
+			return ByteBuffer.wrap(body.getBytes(StandardCharsets.UTF_8));
+		}
+	}
+
+	static void writeBuffer(ByteBuffer buf, OutputStream os) throws IOException {
+		if (buf.hasArray()) {
+			os.write(buf.array(), buf.arrayOffset() + buf.position(), buf.remaining());
+			return;
+		}
+		byte[] chunk = new byte[Math.min(CHUNK, buf.remaining())];
+		while (buf.hasRemaining()) {
+			int l = Math.min(chunk.length, buf.remaining());
+			buf.get(chunk, 0, l);
+			os.write(chunk, 0, l);
+		}
+	}
+
+	static String newBoundary() {
+		ThreadLocalRandom r = ThreadLocalRandom.current();
+		return "----=_Part_" + Long.toHexString(r.nextLong() & Long.MAX_VALUE) + '_'
+				+ Long.toHexString(System.nanoTime());
+	}
+
+	/**
+	 * lets an encoder complete own output without closing the target
+	 */
+	static class Unclosable extends FilterOutputStream {
+		Unclosable(OutputStream out) {
+			super(out);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+		}
+
+		@Override
+		public void close() throws IOException {
+			flush();
+		}
+	}
+}
@@ -0,0 +1,297 @@
+package com.drogatkin.mailbee;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.Spliterator;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Consumer;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Reads an mbox archive mapped in memory. Messages are separated by lines
+ * starting with "From " followed by a sender and asctime date, like
+ * "From bob@example.com Mon Jan  1 00:00:00 2024", the archive gets split in
+ * message ranges at such lines, so ranges are parsed independently in
+ * parallel. A body line starting with "From " without the date doesn't split.
+ * Content before the first separator line is ignored, quoted "&gt;From "
+ * lines are left as is.
+ * Line breaks are bare LF as usual in mbox files or CRLF, messages are parsed
+ * as they are, multipart delimiters are found after either.
+ * <p>
+ * Files above 2GB are mapped in overlapping windows, a message has to fit in
+ * 2GB.
+ */
+public class MboxReader implements Closeable {
+	static final int SEGMENT = 1 << 29;
+
+	// range size not worth to split further
+	static final int MIN_SPLIT = 256 * 1024;
+
+	static final int MAX_SEPARATOR = 1000;
+
+	/**
+	 * sender and asctime date, some writers put a time zone before or after
+	 * the year
+	 */
+	static final Pattern SEPARATOR = Pattern.compile("From \\S+ +(Mon|Tue|Wed|Thu|Fri|Sat|Sun) "
+			+ "(Jan|Feb|Mar|Apr|May|Jun|Jul|Aug|Sep|Oct|Nov|Dec) +\\d{1,2} \\d{1,2}:\\d{2}(:\\d{2})? "
+			+ "([^ \\r]+ )?\\d{4}( [^\\r]*)?\\r?");
+
+	final FileChannel channel;
+
+	final long size;
+
+	final int segment;
+
+	final ByteBuffer[] windows;
+
+	final ParseOptions options;
+
+	public MboxReader(Path mbox) throws IOException {
+		this(mbox, new ParseOptions());
+	}
+
+	/**
+	 * @param mbox
+	 *            mbox file
+	 * @param options
+	 *            options to parse every message, in lazy mode parts refer
+	 *            to the mapping, so they can be used until the file gets
+	 *            truncated
+	 * @throws IOException
+	 */
+	public MboxReader(Path mbox, ParseOptions options) throws IOException {
+		this(mbox, options, SEGMENT);
+	}
+
+	MboxReader(Path mbox, ParseOptions options, int segment) throws IOException {
+		this.options = options;
+		this.segment = segment;
+		channel = FileChannel.open(mbox, StandardOpenOption.READ);
+		try {
+			size = channel.size();
+			// a window spans two segments, so a message starting in it is
+			// visible whole when not longer than a segment
+			windows = new ByteBuffer[(int) ((size + segment - 1) / segment)];
+			for (int i = 0; i < windows.length; i++) {
+				long base = (long) i * segment;
+				windows[i] = channel.map(FileChannel.MapMode.READ_ONLY, base, Math.min(size - base, 2L * segment));
+			}
+		} catch (IOException | RuntimeException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Gives raw messages of the archive without envelope lines in order.
+	 *
+	 * @return stream of read only buffers with messages
+	 */
+	public Stream<ByteBuffer> ranges() {
+		return StreamSupport.stream(new RangeSpliterator(nextSeparator(0, size), size), false);
+	}
+
+	/**
+	 * Gives parsed messages of the archive in order. The stream is parallel,
+	 * ranges get split and parsed in the fork join pool of a thread running a
+	 * terminal operation, the common pool by default.
+	 *
+	 * @return parallel ordered stream of messages, parse errors come as
+	 *         {@link UncheckedIOException}
+	 */
+	public Stream<MIMEMessage> messages() {
+		return ranges().parallel().map(this::parse);
+	}
+
+	/**
+	 * Parses all messages of the archive in the pool
+	 *
+	 * @param pool
+	 *            pool to run in
+	 * @return messages in archive order
+	 * @throws IOException
+	 */
+	public List<MIMEMessage> parseAll(ForkJoinPool pool) throws IOException {
+		try {
+			return pool.submit(() -> messages().collect(Collectors.toList())).get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof UncheckedIOException)
+				throw ((UncheckedIOException) e.getCause()).getCause();
+			throw new IOException(e.getCause());
+		}
+	}
+
+	MIMEMessage parse(ByteBuffer message) {
+		try {
+			return MIMEMessage.parse(message, options);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+
+	/**
+	 * finds start of next separator line
+	 *
+	 * @param from
+	 *            first position to check
+	 * @param to
+	 *            end of search
+	 * @return position or to
+	 */
+	long nextSeparator(long from, long to) {
+		if (from == 0 && isSeparator(0))
+			return 0;
+		// a separator follows a line feed
+		for (long p = Math.max(from - 1, 0); p < to - 1;) {
+			int w = (int) (p / segment);
+			ByteBuffer b = windows[w];
+			long base = (long) w * segment;
+			for (int i = (int) (p - base), e = (int) Math.min(to - 1 - base, segment); i < e; i++)
+				if (b.get(i) == '\n' && isSeparator(b, i + 1))
+					return base + i + 1;
+			p = base + segment;
+		}
+		return to;
+	}
+
+	boolean isSeparator(long p) {
+		int w = (int) (p / segment);
+		return w < windows.length && isSeparator(windows[w], (int) (p - (long) w * segment));
+	}
+
+	/**
+	 * checks for a separator line From sender asctime, like From
+	 * bob@example.com Mon Jan  1 00:00:00 2024, so an unescaped body line
+	 * starting with From isn't taken
+	 */
+	static boolean isSeparator(ByteBuffer b, int i) {
+		if (i + 5 > b.limit() || b.get(i) != 'F' || b.get(i + 1) != 'r' || b.get(i + 2) != 'o' || b.get(i + 3) != 'm'
+				|| b.get(i + 4) != ' ')
+			return false;
+		StringBuilder line = new StringBuilder(80);
+		for (int e = Math.min(b.limit(), i + MAX_SEPARATOR); i < e; i++) {
+			char c = (char) (b.get(i) & 255);
+			if (c == '\n')
+				break;
+			line.append(c);
+		}
+		return SEPARATOR.matcher(line).matches();
+	}
+
+	/**
+	 * gives content of a message between separator lines
+	 *
+	 * @param start
+	 *            position of the separator line
+	 * @param end
+	 *            position of next separator line or end of file
+	 */
+	ByteBuffer message(long start, long end) {
+		int w = (int) (start / segment);
+		long base = (long) w * segment;
+		ByteBuffer window = windows[w];
+		int s = (int) (start - base);
+		// envelope line
+		while (start < end && s < window.limit() && window.get(s) != '\n') {
+			s++;
+			start++;
+		}
+		if (start < end) {
+			s++;
+			start++;
+		}
+		// empty line before next separator belongs to the format
+		if (end - start >= 2 && byteAt(end - 1) == '\n') {
+			if (byteAt(end - 2) == '\n')
+				end--;
+			else if (end - start >= 4 && byteAt(end - 2) == '\r' && byteAt(end - 3) == '\n'
+					&& byteAt(end - 4) == '\r')
+				end -= 2;
+		}
+		if (end - base <= window.limit()) {
+			ByteBuffer result = window.duplicate();
+			result.position(s);
+			result.limit((int) (end - base));
+			return result.slice();
+		}
+		if (end - start > Integer.MAX_VALUE)
+			throw new UncheckedIOException(new IOException("Message at " + start + " exceeds 2GB"));
+		try {
+			return channel.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	byte byteAt(long p) {
+		int w = (int) (p / segment);
+		return windows[w].get((int) (p - (long) w * segment));
+	}
+
+	/**
+	 * Ranges of messages, splitting happens at a separator line near a middle
+	 */
+	class RangeSpliterator implements Spliterator<ByteBuffer> {
+		long pos, end;
+
+		RangeSpliterator(long pos, long end) {
+			this.pos = pos;
+			this.end = end;
+		}
+
+		@Override
+		public boolean tryAdvance(Consumer<? super ByteBuffer> action) {
+			if (pos >= end)
+				return false;
+			long next = nextSeparator(pos + 1, end);
+			ByteBuffer message = message(pos, next);
+			pos = next;
+			action.accept(message);
+			return true;
+		}
+
+		@Override
+		public Spliterator<ByteBuffer> trySplit() {
+			if (end - pos < MIN_SPLIT)
+				return null;
+			long mid = nextSeparator(pos + (end - pos) / 2, end);
+			if (mid >= end)
+				return null;
+			RangeSpliterator prefix = new RangeSpliterator(pos, mid);
+			pos = mid;
+			return prefix;
+		}
+
+		/**
+		 * size in bytes, it is proportional to number of messages
+		 */
+		@Override
+		public long estimateSize() {
+			return end - pos;
+		}
+
+		@Override
+		public int characteristics() {
+			return ORDERED | NONNULL | IMMUTABLE;
+		}
+	}
+}
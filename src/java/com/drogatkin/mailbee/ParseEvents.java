@@ -0,0 +1,63 @@
+package com.drogatkin.mailbee;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Flight recorder events of parsing. They are disabled until a recording
+ * enables them, for example by
+ * <code>-XX:StartFlightRecording:settings=profile,+com.drogatkin.mailbee.Parse#enabled=true</code>.
+ * A disabled event is never committed, and its allocation gets eliminated by
+ * JIT, so the cost is a check of a static flag.
+ */
+final class ParseEvents {
+	private ParseEvents() {
+	}
+
+	@Name("com.drogatkin.mailbee.Parse")
+	@Label("Message Parse")
+	@Category({ "Mailbee", "Parsing" })
+	@Description("Parse of a whole message")
+	@StackTrace(false)
+	static final class Parse extends Event {
+		@Label("Message Size")
+		@DataAmount
+		long size;
+
+		@Label("Parts")
+		int parts;
+	}
+
+	@Name("com.drogatkin.mailbee.ParsePart")
+	@Label("Part Parse")
+	@Category({ "Mailbee", "Parsing" })
+	@Description("Parse of a message part including nested parts")
+	@StackTrace(false)
+	static final class ParsePart extends Event {
+		@Label("Content Type")
+		String contentType;
+
+		@Label("Level")
+		@Description("Nesting level, 0 is a message itself")
+		int level;
+
+		@Label("Part Size")
+		@DataAmount
+		long size;
+	}
+
+	@Name("com.drogatkin.mailbee.DecodeText")
+	@Label("Decode Text")
+	@Category({ "Mailbee", "Decoding" })
+	@Description("Decoding of RFC 2047 encoded words in a header value")
+	@StackTrace(false)
+	static final class DecodeText extends Event {
+		@Label("Length")
+		int length;
+	}
+}
@@ -0,0 +1,208 @@
+package com.drogatkin.mailbee;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Collects statistics of parsed messages when set by
+ * {@link ParseOptions#metrics(ParseMetrics)}. One instance can be shared by
+ * many parsing threads, a parse fills own {@link Sample} without
+ * synchronization and adds it to totals and histograms when done.
+ * <p>
+ * Decoding done lazily after parse, by {@link MIMEMessage#getBodyDecoded()}
+ * of a lazy part, isn't counted.
+ */
+public class ParseMetrics {
+	/**
+	 * Measurements of one parse
+	 */
+	public static class Sample {
+		public long bytesRead;
+
+		public int headers;
+
+		public int parts;
+
+		public int depth;
+
+		/** time spent in parse total */
+		public long nanos;
+
+		/** time reading and tokenizing headers */
+		public long headerNanos;
+
+		/** time looking for boundaries and passing content */
+		public long boundaryNanos;
+
+		/**
+		 * time decoding content transfer encoding, when it is done while
+		 * reading, otherwise it is part of charset decoding
+		 */
+		public long transferNanos;
+
+		/** time making strings of part content */
+		public long charsetNanos;
+
+		/** part content kept in heap */
+		public long bytesBuffered;
+
+		public boolean failed;
+
+		@Override
+		public String toString() {
+			return "Sample [bytesRead=" + bytesRead + ", headers=" + headers + ", parts=" + parts + ", depth=" + depth
+					+ ", nanos=" + nanos + ", headerNanos=" + headerNanos + ", boundaryNanos=" + boundaryNanos
+					+ ", transferNanos=" + transferNanos + ", charsetNanos=" + charsetNanos + ", bytesBuffered="
+					+ bytesBuffered + ", failed=" + failed + "]";
+		}
+	}
+
+	/**
+	 * Gets every sample, for example to log messages which take too long
+	 */
+	public interface Listener {
+		void parsed(Sample sample);
+	}
+
+	/**
+	 * Lock free histogram with power of 2 buckets
+	 */
+	public static class Histogram {
+		final AtomicLongArray buckets = new AtomicLongArray(65);
+
+		final LongAdder count = new LongAdder();
+
+		final LongAdder sum = new LongAdder();
+
+		final AtomicLong max = new AtomicLong();
+
+		public void record(long value) {
+			if (value < 0)
+				value = 0;
+			buckets.incrementAndGet(64 - Long.numberOfLeadingZeros(value));
+			count.increment();
+			sum.add(value);
+			long m;
+			while ((m = max.get()) < value && !max.compareAndSet(m, value))
+				;
+		}
+
+		public long getCount() {
+			return count.sum();
+		}
+
+		public long getSum() {
+			return sum.sum();
+		}
+
+		public long getMax() {
+			return max.get();
+		}
+
+		public double getMean() {
+			long c = count.sum();
+			return c == 0 ? 0 : (double) sum.sum() / c;
+		}
+
+		/**
+		 * @param p
+		 *            percentile, like 0.99
+		 * @return upper bound of a bucket where the percentile falls, it is
+		 *         less than twice of a precise value
+		 */
+		public long getPercentile(double p) {
+			long total = 0;
+			for (int i = 0; i < buckets.length(); i++)
+				total += buckets.get(i);
+			long rank = (long) Math.ceil(total * p), seen = 0;
+			for (int i = 0; i < buckets.length(); i++) {
+				seen += buckets.get(i);
+				if (seen >= rank && seen > 0)
+					return Math.min(i == 64 ? Long.MAX_VALUE : (1L << i) - 1, getMax());
+			}
+			return 0;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("count=%d mean=%.1f p50=%d p99=%d max=%d", getCount(), getMean(), getPercentile(0.5),
+					getPercentile(0.99), getMax());
+		}
+	}
+
+	public final LongAdder messages = new LongAdder();
+
+	public final LongAdder failures = new LongAdder();
+
+	public final LongAdder bytesRead = new LongAdder();
+
+	public final LongAdder headers = new LongAdder();
+
+	public final LongAdder parts = new LongAdder();
+
+	public final LongAdder headerNanos = new LongAdder();
+
+	public final LongAdder boundaryNanos = new LongAdder();
+
+	public final LongAdder transferNanos = new LongAdder();
+
+	public final LongAdder charsetNanos = new LongAdder();
+
+	public final LongAdder bytesBuffered = new LongAdder();
+
+	public final Histogram messageSize = new Histogram();
+
+	public final Histogram parseNanos = new Histogram();
+
+	public final Histogram headerCount = new Histogram();
+
+	public final Histogram partCount = new Histogram();
+
+	public final Histogram depth = new Histogram();
+
+	public final Histogram bufferedSize = new Histogram();
+
+	protected volatile Listener listener;
+
+	public ParseMetrics listener(Listener listener) {
+		this.listener = listener;
+		return this;
+	}
+
+	/**
+	 * adds a sample to totals
+	 */
+	public void record(Sample s) {
+		messages.increment();
+		if (s.failed)
+			failures.increment();
+		bytesRead.add(s.bytesRead);
+		headers.add(s.headers);
+		parts.add(s.parts);
+		headerNanos.add(s.headerNanos);
+		boundaryNanos.add(s.boundaryNanos);
+		transferNanos.add(s.transferNanos);
+		charsetNanos.add(s.charsetNanos);
+		bytesBuffered.add(s.bytesBuffered);
+		messageSize.record(s.bytesRead);
+		parseNanos.record(s.nanos);
+		headerCount.record(s.headers);
+		partCount.record(s.parts);
+		depth.record(s.depth);
+		bufferedSize.record(s.bytesBuffered);
+		Listener l = listener;
+		if (l != null)
+			l.parsed(s);
+	}
+
+	@Override
+	public String toString() {
+		return "ParseMetrics [messages=" + messages + ", failures=" + failures + ", bytesRead=" + bytesRead
+				+ ", headers=" + headers + ", parts=" + parts + ", headerNanos=" + headerNanos + ", boundaryNanos="
+				+ boundaryNanos + ", transferNanos=" + transferNanos + ", charsetNanos=" + charsetNanos
+				+ ", bytesBuffered=" + bytesBuffered + "]\n messageSize: " + messageSize + "\n parseNanos: "
+				+ parseNanos + "\n headerCount: " + headerCount + "\n partCount: " + partCount + "\n depth: " + depth
+				+ "\n bufferedSize: " + bufferedSize;
+	}
+}
@@ -0,0 +1,142 @@
+package com.drogatkin.mailbee;
+
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Set;
+
+/**
+ * Tunes how a message tree gets built by
+ * {@link MIMEMessage#parse(java.io.InputStream, ParseOptions)}
+ */
+public class ParseOptions {
+	boolean lazy;
+
+	int spillThreshold;
+
+	Path spillDirectory;
+
+	boolean decodeTransfer;
+
+	ParseMetrics metrics;
+
+	HeaderProjection projection;
+
+	PartSelector selector;
+
+	String digest;
+
+	/**
+	 * Defers transfer and charset decoding of part bodies until
+	 * {@link MIMEMessage#getBodyDecoded()} gets called. When a message is
+	 * parsed from an array, parts keep only a position of their content in
+	 * it.
+	 *
+	 * @param lazy
+	 * @return this options
+	 */
+	public ParseOptions lazy(boolean lazy) {
+		this.lazy = lazy;
+		return this;
+	}
+
+	/**
+	 * Moves content of a part read from a stream to a temporary file when it
+	 * exceeds the threshold. Such part is always decoded lazily, and its
+	 * content stays in the file mapped in memory, not in the heap.
+	 *
+	 * @param threshold
+	 *            max size of part content kept in memory, 0 turns spilling
+	 *            off
+	 * @param directory
+	 *            directory for temporary files, null for system default
+	 * @return this options
+	 */
+	public ParseOptions spill(int threshold, Path directory) {
+		spillThreshold = threshold;
+		spillDirectory = directory;
+		return this;
+	}
+
+	/**
+	 * Decodes content transfer encoding of parts while they are read, parts
+	 * keep decoded bytes available as {@link MIMEMessage#getBodyStream()}.
+	 * Content can't stay in a source array then, so lazy parts get a copy.
+	 *
+	 * @param decode
+	 * @return this options
+	 */
+	public ParseOptions decodeTransfer(boolean decode) {
+		decodeTransfer = decode;
+		return this;
+	}
+
+	/**
+	 * Records statistics of every parse with these options
+	 *
+	 * @param metrics
+	 *            metrics to add to, null turns recording off
+	 * @return this options
+	 */
+	public ParseOptions metrics(ParseMetrics metrics) {
+		this.metrics = metrics;
+		return this;
+	}
+
+	/**
+	 * Keeps only wanted headers of a message and its parts, values of other
+	 * headers are skipped as bytes. Content-Type and
+	 * Content-Transfer-Encoding are always kept.
+	 *
+	 * @param names
+	 *            wanted header names in any case, null keeps all
+	 * @return this options
+	 */
+	public ParseOptions headers(Set<String> names) {
+		projection = names == null ? null : new HeaderProjection(names);
+		return this;
+	}
+
+	/**
+	 * Keeps content only of parts accepted by the selector, other parts are
+	 * kept with headers and marked {@link MIMEMessage.Part#skipped}
+	 *
+	 * @param selector
+	 *            selector of parts, null keeps all
+	 * @return this options
+	 */
+	public ParseOptions select(PartSelector selector) {
+		this.selector = selector;
+		return this;
+	}
+
+	/**
+	 * Computes digest of every part content while it is read, after transfer
+	 * decoding, and sets it as {@link MIMEMessage#digest}, so equal
+	 * attachments can be found without reading them again
+	 *
+	 * @param algorithm
+	 *            {@link XXHash64#ALGORITHM} for a fast non cryptographic hash,
+	 *            or a name of a message digest, like SHA-256, null turns it
+	 *            off
+	 * @return this options
+	 * @throws IllegalArgumentException
+	 *             when the algorithm isn't available
+	 */
+	public ParseOptions digest(String algorithm) {
+		if (algorithm != null)
+			newDigest(algorithm);
+		digest = algorithm;
+		return this;
+	}
+
+	static MessageDigest newDigest(String algorithm) {
+		if (XXHash64.ALGORITHM.equalsIgnoreCase(algorithm))
+			return new XXHash64();
+		try {
+			return MessageDigest.getInstance(algorithm);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalArgumentException(e);
+		}
+	}
+}
@@ -0,0 +1,22 @@
+package com.drogatkin.mailbee;
+
+/**
+ * Decides which parts of a message get content, it's asked when headers of
+ * a part are read. Content of a rejected part is scanned past without
+ * buffering or decoding. Multipart containers aren't asked, their nested
+ * parts are.
+ *
+ * @see ParseOptions#select(PartSelector)
+ */
+@FunctionalInterface
+public interface PartSelector {
+	/**
+	 * @param section
+	 *            section path of the part like in IMAP, "1" is a first
+	 *            part of a message, "1.2" is a second part nested in it
+	 * @param part
+	 *            part with headers, no content yet
+	 * @return true when content of the part is needed
+	 */
+	boolean accept(String section, MIMEMessage.Part part);
+}
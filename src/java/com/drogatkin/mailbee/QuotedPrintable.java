@@ -0,0 +1,496 @@
+package com.drogatkin.mailbee;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Table driven quoted-printable codec of RFC 2045 working on whole buffers.
+ * Q mode is the variant of RFC 2047 encoded words, where '_' stands for
+ * space. Codecs keep state between calls, so data can come in any chunks.
+ */
+public final class QuotedPrintable {
+	static final byte[] HEX_DECODE = new byte[256];
+
+	static final byte[] HEX = "0123456789ABCDEF".getBytes();
+
+	/** max line length of encoded text, not counting soft break */
+	static final int LINE_LENGTH = 75;
+
+	static {
+		Arrays.fill(HEX_DECODE, (byte) -1);
+		for (int i = 0; i < 16; i++) {
+			HEX_DECODE[HEX[i]] = (byte) i;
+			HEX_DECODE[Character.toLowerCase(HEX[i])] = (byte) i;
+		}
+	}
+
+	private QuotedPrintable() {
+	}
+
+	public static class Decoder {
+		/** white space after '=' longer than a line isn't padding of a soft break */
+		static final int MAX_SPACE = LINE_LENGTH + 1;
+
+		/** max bytes of a chunk decoding kept for the next one */
+		public static final int MAX_PENDING = MAX_SPACE + 2;
+
+		final boolean q;
+
+		// pending escape, '=' and up to one more byte, or '=' and white space
+		int pending, first;
+
+		final byte[] space = new byte[MAX_SPACE];
+
+		int spaces;
+
+		public Decoder(boolean q) {
+			this.q = q;
+		}
+
+		/**
+		 * decodes a chunk, white space between '=' and line break of a soft
+		 * break is ignored
+		 *
+		 * @param dst
+		 *            has to have room for len + {@link #MAX_PENDING} bytes
+		 * @return number of decoded bytes
+		 */
+		public int decode(byte[] src, int off, int len, byte[] dst, int dstOff) {
+			int dp = dstOff;
+			int e = off + len;
+			int i = off;
+			while (i < e) {
+				if (pending == 0) {
+					// literal run
+					byte b = src[i++];
+					if (b == '=')
+						pending = 1;
+					else if (b == '_' && q)
+						dst[dp++] = ' ';
+					else
+						dst[dp++] = b;
+					continue;
+				}
+				int c = src[i++] & 255;
+				if (pending == 1) {
+					if (c == '\n') // soft line break
+						pending = 0;
+					else if (c == ' ' || c == '\t') {
+						space[0] = (byte) c;
+						spaces = 1;
+						pending = 3;
+					} else {
+						first = c;
+						pending = 2;
+					}
+					continue;
+				}
+				if (pending == 3) {
+					if (c == '\n') { // soft line break after white space
+						pending = 0;
+						continue;
+					}
+					if ((c == ' ' || c == '\t' || c == '\r') && spaces < MAX_SPACE) {
+						space[spaces++] = (byte) c;
+						continue;
+					}
+					// broken escape is kept as is
+					pending = 0;
+					dst[dp++] = '=';
+					System.arraycopy(space, 0, dst, dp, spaces);
+					dp += spaces;
+					i--;
+					continue;
+				}
+				pending = 0;
+				int h = HEX_DECODE[first], l = HEX_DECODE[c];
+				if ((h | l) >= 0)
+					dst[dp++] = (byte) (h << 4 | l);
+				else if (first == '\r' && c == '\n')
+					; // soft line break
+				else { // broken escape is kept as is
+					dst[dp++] = '=';
+					dst[dp++] = (byte) first;
+					i--; // next byte starts over
+				}
+			}
+			return dp - dstOff;
+		}
+
+		/**
+		 * completes decoding, a truncated escape is given as is
+		 *
+		 * @param dst
+		 *            has to have room for {@link #MAX_PENDING} bytes
+		 * @return number of bytes
+		 */
+		public int finish(byte[] dst, int dstOff) {
+			int dp = dstOff;
+			if (pending > 0) {
+				dst[dp++] = '=';
+				if (pending == 2)
+					dst[dp++] = (byte) first;
+				else if (pending == 3) {
+					System.arraycopy(space, 0, dst, dp, spaces);
+					dp += spaces;
+				}
+				pending = 0;
+			}
+			return dp - dstOff;
+		}
+	}
+
+	public static class Encoder {
+		final boolean q;
+
+		final boolean binary;
+
+		int lineLen;
+
+		int pendingWs = -1; // white space can't end a line unencoded
+
+		boolean pendingCR;
+
+		/**
+		 * @param q
+		 *            encode for encoded words, no line breaks are produced
+		 * @param binary
+		 *            line breaks of data are encoded as well
+		 */
+		public Encoder(boolean q, boolean binary) {
+			this.q = q;
+			this.binary = binary || q;
+		}
+
+		/**
+		 * max size of encoded chunk
+		 */
+		public static int maxEncodedLength(int len) {
+			return len * 6 + 10;
+		}
+
+		/**
+		 * encodes a chunk
+		 *
+		 * @param dst
+		 *            has to have room for {@link #maxEncodedLength(int)}
+		 * @return number of encoded bytes
+		 */
+		public int encode(byte[] src, int off, int len, byte[] dst, int dstOff) {
+			int dp = dstOff;
+			for (int i = off, e = off + len; i < e; i++) {
+				int c = src[i] & 255;
+				if (pendingCR) {
+					pendingCR = false;
+					if (c == '\n') {
+						dp = lineBreak(dst, dp);
+						continue;
+					}
+					dp = flushWs(dst, dp, false);
+					dp = escape(dst, dp, '\r');
+				}
+				if (!binary && (c == '\r' || c == '\n')) {
+					if (c == '\r')
+						pendingCR = true;
+					else
+						dp = lineBreak(dst, dp);
+					continue;
+				}
+				if ((c == ' ' || c == '\t') && !q) {
+					dp = flushWs(dst, dp, false);
+					pendingWs = c;
+					continue;
+				}
+				dp = flushWs(dst, dp, false);
+				if (q ? c == ' ' : false)
+					dp = put(dst, dp, '_');
+				else if (q ? safeQ(c) : c > 32 && c < 127 && c != '=')
+					dp = put(dst, dp, c);
+				else
+					dp = escape(dst, dp, c);
+			}
+			return dp - dstOff;
+		}
+
+		/**
+		 * completes encoding
+		 *
+		 * @return number of bytes
+		 */
+		public int finish(byte[] dst, int dstOff) {
+			int dp = flushWs(dst, dstOff, true);
+			if (pendingCR) {
+				pendingCR = false;
+				dp = escape(dst, dp, '\r');
+			}
+			return dp - dstOff;
+		}
+
+		private int lineBreak(byte[] dst, int dp) {
+			dp = flushWs(dst, dp, true);
+			dst[dp++] = '\r';
+			dst[dp++] = '\n';
+			lineLen = 0;
+			return dp;
+		}
+
+		private int flushWs(byte[] dst, int dp, boolean lineEnd) {
+			if (pendingWs < 0)
+				return dp;
+			int c = pendingWs;
+			pendingWs = -1;
+			return lineEnd ? escape(dst, dp, c) : put(dst, dp, c);
+		}
+
+		private int put(byte[] dst, int dp, int c) {
+			dp = softBreak(dst, dp, 1);
+			dst[dp++] = (byte) c;
+			lineLen++;
+			return dp;
+		}
+
+		private int escape(byte[] dst, int dp, int c) {
+			dp = softBreak(dst, dp, 3);
+			dst[dp++] = '=';
+			dst[dp++] = HEX[c >> 4];
+			dst[dp++] = HEX[c & 15];
+			lineLen += 3;
+			return dp;
+		}
+
+		private int softBreak(byte[] dst, int dp, int need) {
+			if (!q && lineLen + need > LINE_LENGTH) {
+				dst[dp++] = '=';
+				dst[dp++] = '\r';
+				dst[dp++] = '\n';
+				lineLen = 0;
+			}
+			return dp;
+		}
+
+		static boolean safeQ(int c) {
+			return c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z' || c >= '0' && c <= '9' || c == '!' || c == '*'
+					|| c == '+' || c == '-' || c == '/';
+		}
+	}
+
+	public static byte[] decode(byte[] src) {
+		return decode(src, 0, src.length, false);
+	}
+
+	public static byte[] decode(byte[] src, int off, int len, boolean q) {
+		Decoder d = new Decoder(q);
+		byte[] dst = new byte[len + Decoder.MAX_PENDING];
+		int l = d.decode(src, off, len, dst, 0);
+		l += d.finish(dst, l);
+		return Arrays.copyOf(dst, l);
+	}
+
+	/**
+	 * decodes remaining content of a buffer, the buffer position gets moved to
+	 * its limit
+	 */
+	public static ByteBuffer decode(ByteBuffer src) {
+		if (src.hasArray()) {
+			byte[] result = decode(src.array(), src.arrayOffset() + src.position(), src.remaining(), false);
+			src.position(src.limit());
+			return ByteBuffer.wrap(result);
+		}
+		byte[] b = new byte[src.remaining()];
+		src.get(b);
+		return ByteBuffer.wrap(decode(b));
+	}
+
+	public static byte[] encode(byte[] src) {
+		return encode(src, 0, src.length, false);
+	}
+
+	public static byte[] encode(byte[] src, int off, int len, boolean binary) {
+		Encoder e = new Encoder(false, binary);
+		byte[] dst = new byte[Encoder.maxEncodedLength(len)];
+		int l = e.encode(src, off, len, dst, 0);
+		l += e.finish(dst, l);
+		return Arrays.copyOf(dst, l);
+	}
+
+	/**
+	 * encodes remaining content of a buffer as text, the buffer position gets
+	 * moved to its limit
+	 */
+	public static ByteBuffer encode(ByteBuffer src) {
+		if (src.hasArray()) {
+			byte[] result = encode(src.array(), src.arrayOffset() + src.position(), src.remaining(), false);
+			src.position(src.limit());
+			return ByteBuffer.wrap(result);
+		}
+		byte[] b = new byte[src.remaining()];
+		src.get(b);
+		return ByteBuffer.wrap(encode(b));
+	}
+
+	/**
+	 * Decodes data written to it
+	 */
+	public static class DecoderOutputStream extends FilterOutputStream {
+		final Decoder decoder;
+
+		byte[] ob = new byte[4 * 1024 + Decoder.MAX_PENDING];
+
+		public DecoderOutputStream(OutputStream out, boolean q) {
+			super(out);
+			decoder = new Decoder(q);
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b) throws IOException {
+			write(b, 0, b.length);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			while (len > 0) {
+				int l = Math.min(len, ob.length - Decoder.MAX_PENDING);
+				out.write(ob, 0, decoder.decode(b, off, l, ob, 0));
+				off += l;
+				len -= l;
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			out.write(ob, 0, decoder.finish(ob, 0));
+			super.close();
+		}
+	}
+
+	/**
+	 * Encodes data written to it
+	 */
+	public static class EncoderOutputStream extends FilterOutputStream {
+		final Encoder encoder;
+
+		byte[] ob = new byte[Encoder.maxEncodedLength(1024)];
+
+		public EncoderOutputStream(OutputStream out, boolean binary) {
+			super(out);
+			encoder = new Encoder(false, binary);
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b) throws IOException {
+			write(b, 0, b.length);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			while (len > 0) {
+				int l = Math.min(len, 1024);
+				out.write(ob, 0, encoder.encode(b, off, l, ob, 0));
+				off += l;
+				len -= l;
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			out.write(ob, 0, encoder.finish(ob, 0));
+			super.close();
+		}
+	}
+
+	/**
+	 * Decodes a stream
+	 */
+	public static class DecoderInputStream extends FilterInputStream {
+		final Decoder decoder;
+
+		byte[] ib = new byte[4 * 1024];
+
+		byte[] ob = new byte[4 * 1024 + Decoder.MAX_PENDING];
+
+		int op, ol;
+
+		boolean eof;
+
+		public DecoderInputStream(InputStream in, boolean q) {
+			super(in);
+			decoder = new Decoder(q);
+		}
+
+		@Override
+		public int read() throws IOException {
+			if (op >= ol && !fill())
+				return -1;
+			return ob[op++] & 255;
+		}
+
+		@Override
+		public int read(byte[] b) throws IOException {
+			return read(b, 0, b.length);
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int result = 0;
+			while (len > 0) {
+				if (op >= ol && !fill())
+					break;
+				int l = Math.min(len, ol - op);
+				System.arraycopy(ob, op, b, off, l);
+				op += l;
+				off += l;
+				len -= l;
+				result += l;
+			}
+			return result == 0 && len > 0 ? -1 : result;
+		}
+
+		private boolean fill() throws IOException {
+			op = ol = 0;
+			while (ol == 0) {
+				if (eof)
+					return false;
+				int l = in.read(ib);
+				if (l < 0) {
+					eof = true;
+					ol = decoder.finish(ob, 0);
+				} else
+					ol = decoder.decode(ib, 0, l, ob, 0);
+			}
+			return true;
+		}
+
+		@Override
+		public int available() throws IOException {
+			return ol - op;
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			long result = 0;
+			while (result < n && read() >= 0)
+				result++;
+			return result;
+		}
+
+		@Override
+		public boolean markSupported() {
+			return false;
+		}
+	}
+}
@@ -0,0 +1,98 @@
+package com.drogatkin.mailbee;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Keeps written content in memory until it reaches a threshold, the rest
+ * goes to a temporary file
+ */
+class SpillOutputStream extends OutputStream {
+	int threshold;
+	Path directory;
+	ByteArrayOutputStream bos = new ByteArrayOutputStream();
+	Path file;
+	FileChannel channel;
+
+	/**
+	 * @param threshold
+	 *            max bytes kept in memory
+	 * @param directory
+	 *            where temporary file is created, null for default
+	 */
+	SpillOutputStream(int threshold, Path directory) {
+		this.threshold = threshold;
+		this.directory = directory;
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		write(new byte[] { (byte) b }, 0, 1);
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		if (channel == null) {
+			if (bos.size() + len <= threshold) {
+				bos.write(b, off, len);
+				return;
+			}
+			spill();
+		}
+		ByteBuffer bb = ByteBuffer.wrap(b, off, len);
+		while (bb.hasRemaining())
+			channel.write(bb);
+	}
+
+	void spill() throws IOException {
+		file = directory == null ? Files.createTempFile("mailbee", ".part")
+				: Files.createTempFile(directory, "mailbee", ".part");
+		channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		ByteBuffer bb = ByteBuffer.wrap(bos.toByteArray());
+		bos = null;
+		while (bb.hasRemaining())
+			channel.write(bb);
+	}
+
+	boolean isSpilled() {
+		return channel != null;
+	}
+
+	/**
+	 * completes writing and gives the content, spilled content is mapped from
+	 * the temporary file, which is removed at once when system allows
+	 *
+	 * @return written content
+	 * @throws IOException
+	 */
+	ByteBuffer toByteBuffer() throws IOException {
+		if (channel == null)
+			return ByteBuffer.wrap(bos.toByteArray());
+		try {
+			return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		} finally {
+			discard();
+		}
+	}
+
+	/**
+	 * closes the temporary file and removes it, content mapped before stays
+	 * available
+	 */
+	void discard() throws IOException {
+		if (channel == null)
+			return;
+		try {
+			channel.close();
+		} finally {
+			if (!file.toFile().delete())
+				file.toFile().deleteOnExit();
+		}
+	}
+}
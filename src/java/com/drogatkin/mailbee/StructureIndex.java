@@ -0,0 +1,458 @@
+package com.drogatkin.mailbee;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Compact binary index of a message structure, as BODYSTRUCTURE of IMAP
+ * servers. It keeps positions of header blocks and content of every part
+ * along with content type, transfer encoding, charset and section path, so a
+ * message opened again gets its tree without a parse, only small header
+ * blocks are read.
+ * <p>
+ * An index is recorded by {@link Recorder} during any parse, it can be kept
+ * by {@link #write(OutputStream)} in any store, or in a sidecar file of a
+ * message by {@link #open(Path)}.
+ */
+public class StructureIndex {
+	static final int MAGIC = 0x4D42_5349; // MBSI
+
+	static final int VERSION = 2;
+
+	/** extension of an index file */
+	public static final String SIDECAR = ".mbsi";
+
+	/** folder of index files in a Maildir, not a Maildir++ folder */
+	public static final String INDEX_DIRECTORY = "mailbee-index";
+
+	/**
+	 * a part of a message, the message itself is first
+	 */
+	public static class Entry {
+		public int level;
+
+		/** section path like 1.2, empty for the message */
+		public String section;
+
+		public long headerOffset;
+
+		public long bodyOffset;
+
+		/** content length, preamble for multipart */
+		public long bodyLength;
+
+		public String contentType;
+
+		public String transferEncoding;
+
+		public String charset;
+
+		public boolean multipart;
+
+		public boolean last;
+
+		@Override
+		public String toString() {
+			return "Entry [section=" + section + ", level=" + level + ", headerOffset=" + headerOffset
+					+ ", bodyOffset=" + bodyOffset + ", bodyLength=" + bodyLength + ", contentType=" + contentType
+					+ ", transferEncoding=" + transferEncoding + ", charset=" + charset + "]";
+		}
+	}
+
+	/** parts in document order */
+	public final List<Entry> parts = new ArrayList<>();
+
+	/** size of the indexed message */
+	public long messageSize;
+
+	/**
+	 * hash of header blocks of all parts to check the index belongs to the
+	 * message, a change moving a part moves its header block
+	 */
+	public long fingerprint;
+
+	/** last modification time of an indexed file in milliseconds, or 0 */
+	public long lastModified;
+
+	/**
+	 * Records an index from parsing events passing them to a handler. Body
+	 * of every part is scanned to learn its length, even when the handler
+	 * doesn't want it.
+	 */
+	public static class Recorder implements MIMEHandler {
+		protected final MIMEHandler handler;
+
+		protected final StructureIndex index = new StructureIndex();
+
+		final ArrayDeque<Entry> open = new ArrayDeque<>();
+
+		final ArrayDeque<int[]> children = new ArrayDeque<>();
+
+		final ArrayDeque<Boolean> wanted = new ArrayDeque<>();
+
+		long end;
+
+		/**
+		 * @param handler
+		 *            receives events, can be null
+		 */
+		public Recorder(MIMEHandler handler) {
+			this.handler = handler;
+		}
+
+		@Override
+		public void startPart(int level, long offset) throws IOException {
+			Entry e = new Entry();
+			e.level = level;
+			e.headerOffset = offset;
+			Entry parent = open.peek();
+			if (parent == null)
+				e.section = "";
+			else {
+				int n = ++children.peek()[0];
+				e.section = parent.level == 0 ? String.valueOf(n) : parent.section + "." + n;
+			}
+			index.parts.add(e);
+			open.push(e);
+			children.push(new int[1]);
+			if (handler != null)
+				handler.startPart(level, offset);
+		}
+
+		@Override
+		public void header(String name, String value) throws IOException {
+			Entry e = open.peek();
+			if (value != null) {
+				if (e.contentType == null && MIMEMessage.CONTENT_TYPE.equals(name))
+					e.contentType = value.trim();
+				else if (e.transferEncoding == null && MIMEMessage.CONTENT_TRANSFER_ENCODING.equals(name))
+					e.transferEncoding = value.trim();
+			}
+			if (handler != null)
+				handler.header(name, value);
+		}
+
+		@Override
+		public boolean endHeaders(long offset) throws IOException {
+			Entry e = open.peek();
+			e.bodyOffset = offset;
+			end = offset;
+			if (e.contentType != null) {
+				e.multipart = e.contentType.toLowerCase().indexOf("multipart/") >= 0
+						&& MIMEMessage.getBoundary(e.contentType) != null;
+				e.charset = MIMEMessage.charsetParameter(e.contentType);
+			}
+			wanted.push(handler != null && handler.endHeaders(offset));
+			return true;
+		}
+
+		@Override
+		public void bodyChunk(byte[] buf, int off, int len) throws IOException {
+			open.peek().bodyLength += len;
+			end += len;
+			if (wanted.peek())
+				handler.bodyChunk(buf, off, len);
+		}
+
+		@Override
+		public void endPart(boolean last) throws IOException {
+			open.pop().last = last;
+			children.pop();
+			wanted.pop();
+			if (handler != null)
+				handler.endPart(last);
+		}
+
+		/**
+		 * @param message
+		 *            the parsed message, header blocks of its parts get
+		 *            hashed
+		 * @return recorded index
+		 */
+		public StructureIndex getIndex(ByteBuffer message) {
+			index.messageSize = message.remaining();
+			index.fingerprint = index.fingerprint(message);
+			return index;
+		}
+	}
+
+	/**
+	 * parses a message recording its index
+	 */
+	public static StructureIndex build(ByteBuffer message) throws IOException {
+		Recorder recorder = new Recorder(null);
+		MIMEMessage.parse(message, recorder, null, new ParseOptions());
+		return recorder.getIndex(message);
+	}
+
+	/**
+	 * checks the index is made for the message, by size and header blocks of
+	 * parts
+	 */
+	public boolean matches(ByteBuffer message) {
+		return !parts.isEmpty() && message.remaining() == messageSize && fingerprint(message) == fingerprint;
+	}
+
+	long fingerprint(ByteBuffer message) {
+		XXHash64 hash = new XXHash64();
+		for (Entry e : parts) {
+			if (e.bodyOffset > message.remaining())
+				break;
+			hash.update(slice(message, e.headerOffset, e.bodyOffset - e.headerOffset));
+		}
+		byte[] d = hash.digest();
+		long result = 0;
+		for (byte x : d)
+			result = result << 8 | (x & 255);
+		return result;
+	}
+
+	/**
+	 * Makes a message tree from the index without parsing content, parts are
+	 * lazy as after {@link ParseOptions#lazy(boolean)} parse of a buffer, they
+	 * refer to content in the message buffer
+	 *
+	 * @param message
+	 *            the indexed message
+	 * @return message
+	 * @throws IOException
+	 *             the index doesn't match the message
+	 */
+	public MIMEMessage open(ByteBuffer message) throws IOException {
+		if (!matches(message))
+			throw new IOException("Index doesn't match the message");
+		MIMEMessage result = null;
+		ArrayDeque<MIMEMessage> parents = new ArrayDeque<>();
+		for (Entry e : parts) {
+			MIMEMessage p;
+			if (e.level == 0) {
+				p = result = new MIMEMessage();
+				p.parts = new ArrayList<>();
+			} else {
+				while (parents.size() > e.level)
+					parents.pop();
+				MIMEMessage parent = parents.peek();
+				MIMEMessage.Part part = new MIMEMessage.Part();
+				part.section = e.section;
+				part.last = e.last;
+				if (parent.parts == null)
+					parent.parts = new ArrayList<>();
+				parent.parts.add(part);
+				p = part;
+			}
+			p.headers = MIMEMessage.parseHeadersOnly(slice(message, e.headerOffset, e.bodyOffset - e.headerOffset))
+					.headers;
+			p.rawBody = slice(message, e.bodyOffset, e.bodyLength);
+			parents.push(p);
+		}
+		return result;
+	}
+
+	static ByteBuffer slice(ByteBuffer message, long offset, long length) {
+		ByteBuffer b = message.duplicate();
+		b.position(b.position() + (int) offset);
+		b.limit(b.position() + (int) length);
+		return b.slice();
+	}
+
+	public void write(OutputStream out) throws IOException {
+		DataOutputStream dos = new DataOutputStream(out);
+		dos.writeInt(MAGIC);
+		dos.writeByte(VERSION);
+		writeVarLong(dos, messageSize);
+		dos.writeLong(fingerprint);
+		dos.writeLong(lastModified);
+		writeVarLong(dos, parts.size());
+		long prev = 0;
+		for (Entry e : parts) {
+			writeVarLong(dos, e.level);
+			dos.writeByte((e.multipart ? 1 : 0) | (e.last ? 2 : 0));
+			// offsets grow in document order, so deltas are small
+			writeVarLong(dos, e.headerOffset - prev);
+			writeVarLong(dos, e.bodyOffset - e.headerOffset);
+			writeVarLong(dos, e.bodyLength);
+			prev = e.headerOffset;
+			writeString(dos, e.contentType);
+			writeString(dos, e.transferEncoding);
+			writeString(dos, e.charset);
+		}
+		dos.flush();
+	}
+
+	public static StructureIndex read(InputStream in) throws IOException {
+		DataInputStream dis = new DataInputStream(in);
+		if (dis.readInt() != MAGIC)
+			throw new IOException("Not a structure index");
+		int version = dis.readUnsignedByte();
+		if (version != VERSION)
+			throw new IOException("Unsupported index version " + version);
+		StructureIndex result = new StructureIndex();
+		result.messageSize = readVarLong(dis);
+		result.fingerprint = dis.readLong();
+		result.lastModified = dis.readLong();
+		long n = readVarLong(dis);
+		// every part but the message has at least a delimiter
+		if (result.messageSize < 0 || n < 1 || n > result.messageSize + 1)
+			throw new IOException("Corrupted structure index");
+		long prev = 0;
+		int level = 0;
+		int[] counters = new int[16];
+		String[] sections = new String[16];
+		for (long i = 0; i < n; i++) {
+			Entry e = new Entry();
+			long l = readVarLong(dis);
+			// a part is the first or nested in a previous one
+			if (i == 0 ? l != 0 : l < 1 || l > level + 1)
+				throw new IOException("Corrupted structure index, part " + i + " at level " + l);
+			e.level = level = (int) l;
+			if (level + 1 >= counters.length) {
+				counters = Arrays.copyOf(counters, counters.length * 2);
+				sections = Arrays.copyOf(sections, sections.length * 2);
+			}
+			int flags = dis.readUnsignedByte();
+			e.multipart = (flags & 1) != 0;
+			e.last = (flags & 2) != 0;
+			long headerLength, size = result.messageSize;
+			e.headerOffset = prev + readVarLong(dis);
+			headerLength = readVarLong(dis);
+			e.bodyLength = readVarLong(dis);
+			if (e.headerOffset < prev || e.headerOffset > size || headerLength < 0
+					|| headerLength > size - e.headerOffset || e.bodyLength < 0
+					|| e.bodyLength > size - e.headerOffset - headerLength)
+				throw new IOException("Corrupted structure index, part " + i + " is out of message");
+			e.bodyOffset = e.headerOffset + headerLength;
+			prev = e.headerOffset;
+			e.contentType = readString(dis);
+			e.transferEncoding = readString(dis);
+			e.charset = readString(dis);
+			// section path follows nesting
+			if (e.level > 0) {
+				int c = ++counters[e.level];
+				e.section = e.level == 1 ? String.valueOf(c) : sections[e.level - 1] + "." + c;
+			} else
+				e.section = "";
+			sections[e.level] = e.section;
+			counters[e.level + 1] = 0;
+			result.parts.add(e);
+		}
+		return result;
+	}
+
+	/**
+	 * Gives sidecar index file of a message file. Index of a message in
+	 * Maildir cur or new folder is kept in {@link #INDEX_DIRECTORY} of the
+	 * Maildir by unique name of the message, so it isn't taken for a message
+	 * and stays with the message when its flags change. Index of another
+	 * file is hidden next to it.
+	 */
+	public static Path sidecar(Path message) {
+		Path file = message.toAbsolutePath();
+		Path dir = file.getParent();
+		String name = file.getFileName().toString();
+		if (BatchIngester.isMaildirFolder(dir, "cur") || BatchIngester.isMaildirFolder(dir, "new")) {
+			int info = name.indexOf(':');
+			if (info > 0)
+				name = name.substring(0, info);
+			return dir.getParent().resolve(INDEX_DIRECTORY).resolve(name + SIDECAR);
+		}
+		return file.resolveSibling("." + name + SIDECAR);
+	}
+
+	/**
+	 * Opens a message file using its sidecar index, a missing or outdated
+	 * index gets made by a parse and written. An index is taken when the
+	 * file keeps its modification time, size and header blocks of parts. The
+	 * file is mapped in memory,
+	 * so it should not be truncated while parts are in use.
+	 *
+	 * @param message
+	 *            message file, like .eml
+	 * @return message with lazy parts
+	 * @throws IOException
+	 */
+	public static MIMEMessage open(Path message) throws IOException {
+		ByteBuffer content;
+		// taken before content, so a change while reading gets indexed again
+		long lastModified = Files.getLastModifiedTime(message).toMillis();
+		try (FileChannel fc = FileChannel.open(message, StandardOpenOption.READ)) {
+			long size = fc.size();
+			if (size > Integer.MAX_VALUE)
+				return MIMEMessage.parse(message, new ParseOptions().lazy(true));
+			content = fc.map(FileChannel.MapMode.READ_ONLY, 0, size);
+		}
+		Path sidecar = sidecar(message);
+		if (Files.isRegularFile(sidecar))
+			try (InputStream in = new BufferedInputStream(Files.newInputStream(sidecar))) {
+				StructureIndex index = read(in);
+				if (index.lastModified == lastModified && index.matches(content))
+					return index.open(content);
+			} catch (IOException | RuntimeException e) {
+				// broken index gets made again
+			}
+		ParseOptions options = new ParseOptions().lazy(true);
+		MIMEMessage.MessageBuilder builder = new MIMEMessage.MessageBuilder(options, content);
+		Recorder recorder = new Recorder(builder);
+		MIMEMessage.parse(content, recorder, builder.sample, options);
+		Path temp = null;
+		try {
+			Files.createDirectories(sidecar.getParent());
+			temp = Files.createTempFile(sidecar.getParent(), ".", SIDECAR);
+			try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(temp))) {
+				StructureIndex index = recorder.getIndex(content);
+				index.lastModified = lastModified;
+				index.write(out);
+			}
+			Files.move(temp, sidecar, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			// a read only store still gets the message, index is made next time again
+		} finally {
+			if (temp != null)
+				Files.deleteIfExists(temp);
+		}
+		return builder.getMessage();
+	}
+
+	static void writeVarLong(DataOutputStream out, long v) throws IOException {
+		while ((v & ~0x7FL) != 0) {
+			out.writeByte((int) (v & 0x7F) | 0x80);
+			v >>>= 7;
+		}
+		out.writeByte((int) v);
+	}
+
+	static long readVarLong(DataInputStream in) throws IOException {
+		long result = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			int b = in.readUnsignedByte();
+			result |= (long) (b & 0x7F) << shift;
+			if ((b & 0x80) == 0)
+				return result;
+		}
+		throw new IOException("Malformed number");
+	}
+
+	static void writeString(DataOutputStream out, String s) throws IOException {
+		out.writeBoolean(s != null);
+		if (s != null)
+			out.writeUTF(s);
+	}
+
+	static String readString(DataInputStream in) throws IOException {
+		return in.readBoolean() ? in.readUTF() : null;
+	}
+}
@@ -0,0 +1,139 @@
+package com.drogatkin.mailbee;
+
+import java.security.MessageDigest;
+
+/**
+ * Streaming xxHash64 with seed 0 given as a {@link MessageDigest}, so it can
+ * be used where a cryptographic digest is, like in
+ * {@link java.security.DigestOutputStream}. It is many times faster than
+ * SHA-256 and is good to find equal content, but not against forged one.
+ * Digest is 8 bytes of the hash, big endian.
+ */
+public class XXHash64 extends MessageDigest {
+	public static final String ALGORITHM = "XXH64";
+
+	static final long P1 = 0x9E3779B185EBCA87L;
+	static final long P2 = 0xC2B2AE3D27D4EB4FL;
+	static final long P3 = 0x165667B19E3779F9L;
+	static final long P4 = 0x85EBCA77C2B2AE63L;
+	static final long P5 = 0x27D4EB2F165667C5L;
+
+	long v1, v2, v3, v4;
+
+	long total;
+
+	final byte[] stripe = new byte[32];
+
+	int pending; // bytes in stripe
+
+	public XXHash64() {
+		super(ALGORITHM);
+		init();
+	}
+
+	@Override
+	protected void engineReset() {
+		init();
+	}
+
+	private void init() {
+		v1 = P1 + P2;
+		v2 = P2;
+		v3 = 0;
+		v4 = -P1;
+		total = 0;
+		pending = 0;
+	}
+
+	@Override
+	protected int engineGetDigestLength() {
+		return 8;
+	}
+
+	@Override
+	protected void engineUpdate(byte input) {
+		engineUpdate(new byte[] { input }, 0, 1);
+	}
+
+	@Override
+	protected void engineUpdate(byte[] b, int off, int len) {
+		total += len;
+		if (pending > 0) {
+			int n = Math.min(32 - pending, len);
+			System.arraycopy(b, off, stripe, pending, n);
+			pending += n;
+			off += n;
+			len -= n;
+			if (pending < 32)
+				return;
+			consume(stripe, 0);
+			pending = 0;
+		}
+		int e = off + len - 32;
+		for (; off <= e; off += 32)
+			consume(b, off);
+		len = e + 32 - off;
+		if (len > 0) {
+			System.arraycopy(b, off, stripe, 0, len);
+			pending = len;
+		}
+	}
+
+	private void consume(byte[] b, int off) {
+		v1 = round(v1, getLong(b, off));
+		v2 = round(v2, getLong(b, off + 8));
+		v3 = round(v3, getLong(b, off + 16));
+		v4 = round(v4, getLong(b, off + 24));
+	}
+
+	@Override
+	protected byte[] engineDigest() {
+		long h;
+		if (total >= 32) {
+			h = Long.rotateLeft(v1, 1) + Long.rotateLeft(v2, 7) + Long.rotateLeft(v3, 12) + Long.rotateLeft(v4, 18);
+			h = merge(h, v1);
+			h = merge(h, v2);
+			h = merge(h, v3);
+			h = merge(h, v4);
+		} else
+			h = P5;
+		h += total;
+		int i = 0;
+		for (; i + 8 <= pending; i += 8)
+			h = Long.rotateLeft(h ^ round(0, getLong(stripe, i)), 27) * P1 + P4;
+		if (i + 4 <= pending) {
+			h = Long.rotateLeft(h ^ (getInt(stripe, i) & 0xFFFFFFFFL) * P1, 23) * P2 + P3;
+			i += 4;
+		}
+		for (; i < pending; i++)
+			h = Long.rotateLeft(h ^ (stripe[i] & 0xFF) * P5, 11) * P1;
+		h ^= h >>> 33;
+		h *= P2;
+		h ^= h >>> 29;
+		h *= P3;
+		h ^= h >>> 32;
+		byte[] result = new byte[8];
+		for (int k = 7; k >= 0; k--, h >>>= 8)
+			result[k] = (byte) h;
+		engineReset();
+		return result;
+	}
+
+	static long round(long acc, long input) {
+		return Long.rotateLeft(acc + input * P2, 31) * P1;
+	}
+
+	static long merge(long h, long v) {
+		return (h ^ round(0, v)) * P1 + P4;
+	}
+
+	static long getLong(byte[] b, int i) {
+		return (b[i] & 0xFFL) | (b[i + 1] & 0xFFL) << 8 | (b[i + 2] & 0xFFL) << 16 | (b[i + 3] & 0xFFL) << 24
+				| (b[i + 4] & 0xFFL) << 32 | (b[i + 5] & 0xFFL) << 40 | (b[i + 6] & 0xFFL) << 48
+				| (b[i + 7] & 0xFFL) << 56;
+	}
+
+	static int getInt(byte[] b, int i) {
+		return (b[i] & 0xFF) | (b[i + 1] & 0xFF) << 8 | (b[i + 2] & 0xFF) << 16 | (b[i + 3] & 0xFF) << 24;
+	}
+}